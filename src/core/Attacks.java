@@ -0,0 +1,316 @@
+package core;
+
+/**
+ * Precomputed attack sets for every piece type, stored as the raw long value
+ * of a Bitboard. Sliding piece attacks are looked up with magic bitboards: the
+ * occupancy of the squares relevant to the slider is multiplied by a magic
+ * number, and the top bits of the product index a table of attack sets for
+ * that square. The magic numbers were found by a trial and error search over
+ * sparse random numbers. Squares are given as bit indices, see
+ * Position.getBitIndex.
+ * 
+ * @author declan
+ *
+ */
+public class Attacks {
+
+	private static final int[] rookDirections = { Position.N, Position.S, Position.E, Position.W };
+	private static final int[] bishopDirections =
+			{ Position.NE, Position.NW, Position.SE, Position.SW };
+	private static final int[] knightOffsets = { Position.NNE, Position.NEE, Position.SEE,
+			Position.SSE, Position.SSW, Position.SWW, Position.NWW, Position.NNW };
+	private static final int[] kingOffsets = { Position.N, Position.S, Position.E, Position.W,
+			Position.NE, Position.NW, Position.SE, Position.SW };
+	private static final int[][] pawnOffsets =
+			{ { Position.NE, Position.NW }, { Position.SE, Position.SW } };
+
+	private static final long[] knightAttacks = new long[64];
+	private static final long[] kingAttacks = new long[64];
+	private static final long[][] pawnAttacks = new long[2][64];
+
+	private static final long[] rookMasks = new long[64];
+	private static final long[] rookMagics = {
+			0x0080004000208010L, 0x2240002000401002L, 0x0880100080082001L, 0x0100040900100020L,
+			0x2280060800040080L, 0x0200100488014200L, 0x0780010012000880L, 0x0100008020410002L,
+			0x004280014000832cL, 0x0204401000200040L, 0x4c00802000100088L, 0x0028800802801000L,
+			0x0010800400080080L, 0x0002000200041008L, 0x0040808082000100L, 0x0002000201109044L,
+			0x0200818000400020L, 0x0040002010080020L, 0x0504410011032004L, 0x8800210010000900L,
+			0x0004808008000400L, 0x9022008004008002L, 0x0004040001424830L, 0x08018a000097c104L,
+			0x1a20208080004000L, 0x0000200180400181L, 0x0002100480200280L, 0x0800200900100104L,
+			0x0480040080800800L, 0x0010020080800400L, 0x0111102c00011608L, 0x0082004200040891L,
+			0x1000400084800020L, 0xc010804001002105L, 0x4820001000802086L, 0x6902004012002009L,
+			0x0011029005000800L, 0x0042000502000810L, 0x0001000401000200L, 0x80001040a600050cL,
+			0x0000800100410020L, 0x1040200050004000L, 0x000101c060030010L, 0x08002042000a0010L,
+			0x0204480100250010L, 0x8205000400490002L, 0x0410020001008080L, 0x0201000045830002L,
+			0x1020400080002280L, 0x0040002107408500L, 0x00a0002080100080L, 0x0280a01001000b00L,
+			0x0c20802100401002L, 0x0342800200040080L, 0x0000029001080400L, 0x0190840081004200L,
+			0x0001508000422501L, 0x0008411020850202L, 0x0002094210220082L, 0x0000100100200da9L,
+			0x0402002010080446L, 0x00860041041008a2L, 0x050050070a080284L, 0x000800502100840aL };
+	private static final int[] rookShifts = new int[64];
+	private static final long[][] rookAttacks = new long[64][];
+
+	private static final long[] bishopMasks = new long[64];
+	private static final long[] bishopMagics = {
+			0x40180808e4004201L, 0x000404080a102004L, 0x1191180e00491942L, 0x0008060944015001L,
+			0x260c0b0802800004L, 0x0202081424028800L, 0x0001009070484001L, 0x0000808c10010440L,
+			0x0040101030808b91L, 0x0010081000820050L, 0x0000100c4091a420L, 0x0050244040802000L,
+			0x0020011040020000L, 0x1101020804048400L, 0x0024824808280840L, 0x0000620200844400L,
+			0x6420200920840888L, 0x8020301508008700L, 0x044200100400400aL, 0x000800088a004204L,
+			0x0084804400a06801L, 0x0003800848044000L, 0x000402520d1c0280L, 0x0a00824212450804L,
+			0x0003400850040805L, 0x0402502022101a00L, 0x0a02080101080020L, 0x0a21080004044010L,
+			0x0201001011004000L, 0x3008004102010081L, 0x000204a304040100L, 0x032a0e0180806900L,
+			0x1450688820200200L, 0x0282101000040100L, 0x0000812080140800L, 0x4000020083180080L,
+			0x0841100400088020L, 0x0404300410108040L, 0x0010042102008080L, 0x0000852200224a02L,
+			0x0009082104601000L, 0x8002123004004202L, 0x80002052c8001004L, 0x000101c200800810L,
+			0x0110480208200400L, 0x8220920042000c42L, 0x80884d41320a0400L, 0x000400841108804aL,
+			0x0001041203402080L, 0x0000240a08041480L, 0x4000102108480206L, 0x0800002084240800L,
+			0x5002004005010404L, 0xa110405094112400L, 0x0068220c08023400L, 0x3082148114010444L,
+			0x0401008801011000L, 0x4080c29088080240L, 0x2000000042080410L, 0x0100000000840408L,
+			0x2040000004904401L, 0x0882040850100084L, 0x00481a0888280440L, 0x0490420204240012L };
+	private static final int[] bishopShifts = new int[64];
+	private static final long[][] bishopAttacks = new long[64][];
+
+	private static final long[][] betweenSquares = new long[64][64];
+	private static final long[][] lineSquares = new long[64][64];
+
+	static {
+		for (int square = 0; square < 64; square++) {
+			int position = Position.getPosition(square);
+
+			knightAttacks[square] = leaperAttacks(position, knightOffsets);
+			kingAttacks[square] = leaperAttacks(position, kingOffsets);
+			for (int color = 0; color < pawnOffsets.length; color++) {
+				pawnAttacks[color][square] = leaperAttacks(position, pawnOffsets[color]);
+			}
+
+			rookMasks[square] = relevantOccupancy(position, rookDirections);
+			rookShifts[square] = 64 - Long.bitCount(rookMasks[square]);
+			rookAttacks[square] = new long[1 << Long.bitCount(rookMasks[square])];
+			fillTable(position, rookDirections, rookMasks[square], rookMagics[square],
+					rookShifts[square], rookAttacks[square]);
+
+			bishopMasks[square] = relevantOccupancy(position, bishopDirections);
+			bishopShifts[square] = 64 - Long.bitCount(bishopMasks[square]);
+			bishopAttacks[square] = new long[1 << Long.bitCount(bishopMasks[square])];
+			fillTable(position, bishopDirections, bishopMasks[square], bishopMagics[square],
+					bishopShifts[square], bishopAttacks[square]);
+		}
+
+		// Needs the slider tables above to be complete
+		for (int from = 0; from < 64; from++) {
+			for (int to = 0; to < 64; to++) {
+				long fromBit = 1L << from;
+				long toBit = 1L << to;
+
+				if ((rook(from, 0L) & toBit) != 0) {
+					betweenSquares[from][to] = rook(from, toBit) & rook(to, fromBit);
+					lineSquares[from][to] = (rook(from, 0L) & rook(to, 0L)) | fromBit | toBit;
+				} else if ((bishop(from, 0L) & toBit) != 0) {
+					betweenSquares[from][to] = bishop(from, toBit) & bishop(to, fromBit);
+					lineSquares[from][to] =
+							(bishop(from, 0L) & bishop(to, 0L)) | fromBit | toBit;
+				}
+			}
+		}
+	}
+
+	private Attacks() {
+	}
+
+	/**
+	 * Returns the squares attacked by a rook on the given square
+	 * 
+	 * @param square
+	 *            the bit index of the rook
+	 * @param occupancy
+	 *            the occupancy of the board, for blocking
+	 * @return the squares attacked by a rook on the given square
+	 */
+	public static long rook(int square, long occupancy) {
+		return rookAttacks[square][(int) (((occupancy & rookMasks[square])
+				* rookMagics[square]) >>> rookShifts[square])];
+	}
+
+	/**
+	 * Returns the squares attacked by a bishop on the given square
+	 * 
+	 * @param square
+	 *            the bit index of the bishop
+	 * @param occupancy
+	 *            the occupancy of the board, for blocking
+	 * @return the squares attacked by a bishop on the given square
+	 */
+	public static long bishop(int square, long occupancy) {
+		return bishopAttacks[square][(int) (((occupancy & bishopMasks[square])
+				* bishopMagics[square]) >>> bishopShifts[square])];
+	}
+
+	/**
+	 * Returns the squares attacked by a queen on the given square
+	 * 
+	 * @param square
+	 *            the bit index of the queen
+	 * @param occupancy
+	 *            the occupancy of the board, for blocking
+	 * @return the squares attacked by a queen on the given square
+	 */
+	public static long queen(int square, long occupancy) {
+		return rook(square, occupancy) | bishop(square, occupancy);
+	}
+
+	/**
+	 * Returns the squares attacked by a knight on the given square
+	 * 
+	 * @param square
+	 *            the bit index of the knight
+	 * @return the squares attacked by a knight on the given square
+	 */
+	public static long knight(int square) {
+		return knightAttacks[square];
+	}
+
+	/**
+	 * Returns the squares attacked by a king on the given square
+	 * 
+	 * @param square
+	 *            the bit index of the king
+	 * @return the squares attacked by a king on the given square
+	 */
+	public static long king(int square) {
+		return kingAttacks[square];
+	}
+
+	/**
+	 * Returns the squares attacked by a pawn of the given color on the given
+	 * square
+	 * 
+	 * @param color
+	 *            the color of the pawn
+	 * @param square
+	 *            the bit index of the pawn
+	 * @return the squares attacked by a pawn of the given color on the given
+	 *         square
+	 */
+	public static long pawn(int color, int square) {
+		return pawnAttacks[color][square];
+	}
+
+	/**
+	 * Returns the squares attacked by a piece of the given type and color on
+	 * the given square
+	 * 
+	 * @param color
+	 *            the color of the piece, only relevant for pawns
+	 * @param type
+	 *            the serialized PieceType of the piece
+	 * @param square
+	 *            the bit index of the piece
+	 * @param occupancy
+	 *            the occupancy of the board, for blocking
+	 * @return the squares attacked by the given piece on the given square
+	 */
+	public static long attacks(int color, int type, int square, long occupancy) {
+		if (type == PieceType.PAWN.value()) {
+			return pawn(color, square);
+		} else if (type == PieceType.KNIGHT.value()) {
+			return knight(square);
+		} else if (type == PieceType.BISHOP.value()) {
+			return bishop(square, occupancy);
+		} else if (type == PieceType.ROOK.value()) {
+			return rook(square, occupancy);
+		} else if (type == PieceType.QUEEN.value()) {
+			return queen(square, occupancy);
+		} else if (type == PieceType.KING.value()) {
+			return king(square);
+		} else {
+			throw new IllegalArgumentException("Piece type value is not valid");
+		}
+	}
+
+	/**
+	 * Returns the squares strictly between the two given squares if they share
+	 * a rank, file or diagonal, otherwise an empty set
+	 * 
+	 * @param from
+	 *            the bit index of the first square
+	 * @param to
+	 *            the bit index of the second square
+	 * @return the squares strictly between the two given squares
+	 */
+	public static long between(int from, int to) {
+		return betweenSquares[from][to];
+	}
+
+	/**
+	 * Returns every square on the full rank, file or diagonal through the two
+	 * given squares, or an empty set if they do not share one
+	 * 
+	 * @param from
+	 *            the bit index of the first square
+	 * @param to
+	 *            the bit index of the second square
+	 * @return every square on the line through the two given squares
+	 */
+	public static long line(int from, int to) {
+		return lineSquares[from][to];
+	}
+
+	private static long leaperAttacks(int position, int[] offsets) {
+		long attacks = 0L;
+		for (int offset : offsets) {
+			if (Position.isValid(position + offset)) {
+				attacks |= 1L << Position.getBitIndex(position + offset);
+			}
+		}
+
+		return attacks;
+	}
+
+	private static long slidingAttacks(int position, long occupancy, int[] directions) {
+		long attacks = 0L;
+		for (int direction : directions) {
+			for (int pos = position + direction; Position.isValid(pos); pos += direction) {
+				attacks |= 1L << Position.getBitIndex(pos);
+				if ((occupancy & (1L << Position.getBitIndex(pos))) != 0) {
+					break;
+				}
+			}
+		}
+
+		return attacks;
+	}
+
+	// The squares whose occupancy can change the attacks of a slider, the last
+	// square of every ray is left out since it is attacked either way
+	private static long relevantOccupancy(int position, int[] directions) {
+		long mask = 0L;
+		for (int direction : directions) {
+			int pos = position + direction;
+			while (Position.isValid(pos + direction)) {
+				mask |= 1L << Position.getBitIndex(pos);
+				pos += direction;
+			}
+		}
+
+		return mask;
+	}
+
+	private static void fillTable(int position, int[] directions, long mask, long magic,
+			int shift, long[] table) {
+		// Enumerate every subset of the mask with the Carry-Rippler trick
+		long subset = 0L;
+		do {
+			long attacks = slidingAttacks(position, subset, directions);
+			int index = (int) ((subset * magic) >>> shift);
+
+			// A slider always attacks at least one square, so zero marks an
+			// unused slot
+			if (table[index] != 0L && table[index] != attacks) {
+				throw new IllegalStateException("Magic number is not valid");
+			}
+
+			table[index] = attacks;
+			subset = (subset - mask) & mask;
+		} while (subset != 0L);
+	}
+}
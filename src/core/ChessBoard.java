@@ -3,11 +3,9 @@ package core;
 import java.util.Arrays;
 import java.util.EnumSet;
 
-import core.Bitboard.BitboardOperation;
 import core.Position.File;
 import core.Position.Rank;
 import engine.ChessNotation;
-import engine.MoveGeneration;
 
 /**
  * Representation of the current position that the chess game is in. Contains
@@ -23,11 +21,33 @@ public class ChessBoard {
 	 */
 	public static final int BOTH_COLOR = 2;
 
-	private final int[] board; // indexed by position
-	private final Bitboard[][] pieces; // Indexed by color and type
-	private final Bitboard[] occupancy; // Indexed by color plus one for both
+	private static final int NUM_TYPES = PieceType.values().length;
 
-	private final State[] savedStates;
+	private final int[] board; // indexed by position
+	private final long[] pieces; // Indexed by color * NUM_TYPES + type
+	private final long[] occupancy; // Indexed by color plus one for both
+
+	// Running sums of the material and piece-square bonuses of each color,
+	// kept up to date by set and clear. Kings are not counted as material.
+	private final int[] material; // Indexed by color
+	private final int[] middlegame; // Indexed by color
+	private final int[] endgame; // Indexed by color
+
+	// The count of each piece type of each color in five bit fields, and the
+	// index of the material in the MaterialTable. The index is only used
+	// while no piece type has more pieces than the table covers.
+	private long materialKey;
+	private int materialIndex;
+
+	// The undo stack, one entry per move made. Each entry holds the state of
+	// the position before the move that can not be recovered from the move
+	// itself, and the arrays are grown when a line runs past their end.
+	private int[] castlingHistory;
+	private int[] enPassantHistory;
+	private int[] halfMoveHistory;
+	private int[] capturedHistory;
+	private long[] keyHistory;
+	private long[] checkersHistory;
 	private int stateIndex;
 
 	private int castlingPermissions;
@@ -37,20 +57,26 @@ public class ChessBoard {
 	private int fullMoveClock;
 
 	private ZobristKey key;
+	private ZobristKey pawnKey; // Only covers the pawns of both colors
 
-	private class State {
-		public final int castlingPermissions;
-		public final int enPassantPosition;
-		public final int halfMoveClock;
-		public final long zobristKey;
+	// The pieces giving check to the side to move, found on first use
+	private long checkers;
 
-		public State(int castling, int enPassant, int clock, long key) {
-			this.castlingPermissions = castling;
-			this.enPassantPosition = enPassant;
-			this.halfMoveClock = clock;
-			this.zobristKey = key;
-		}
-	}
+	// The optional neural network and the output of its first layer for every
+	// position of the undo stack. Accumulators of positions before the base
+	// were never computed, and updates are switched off while unmove restores
+	// the board since the accumulator below is already correct.
+	private NeuralNetwork network;
+	private short[] accumulators;
+	private int accumulatorBase;
+	private boolean updateAccumulator;
+
+	// Scratch space for the gains of static exchange evaluation, one entry
+	// for each capture in the sequence
+	private final int[] swapList;
+
+	private static final int INITIAL_HISTORY_SIZE = 256;
+	private static final long UNKNOWN_CHECKERS = -1L;
 
 	/**
 	 * Constructs an empty ChessBoard.
@@ -59,29 +85,206 @@ public class ChessBoard {
 		this.board = new int[Position.NUM_TOTAL_VALUES];
 		Arrays.fill(this.board, ChessPiece.NULL_PIECE);
 
-		this.pieces = new Bitboard[ChessColor.values().length + 1][PieceType.values().length];
-		for (int i = 0; i < this.pieces.length; i++) {
-			for (PieceType type : PieceType.values()) {
-				pieces[i][type.value()] = new Bitboard();
-			}
+		this.pieces = new long[(ChessColor.values().length + 1) * NUM_TYPES];
+		this.occupancy = new long[ChessColor.values().length + 1];
+		this.material = new int[ChessColor.values().length];
+		this.middlegame = new int[ChessColor.values().length];
+		this.endgame = new int[ChessColor.values().length];
+		this.materialKey = 0L;
+		this.materialIndex = 0;
+
+		this.castlingHistory = new int[INITIAL_HISTORY_SIZE];
+		this.enPassantHistory = new int[INITIAL_HISTORY_SIZE];
+		this.halfMoveHistory = new int[INITIAL_HISTORY_SIZE];
+		this.capturedHistory = new int[INITIAL_HISTORY_SIZE];
+		this.keyHistory = new long[INITIAL_HISTORY_SIZE];
+		this.checkersHistory = new long[INITIAL_HISTORY_SIZE];
+		this.stateIndex = 0;
+
+		this.castlingPermissions = CastlingBitFlags.NO_CASTLING;
+		this.enPassantPosition = Position.NULL_POSITION;
+		this.activeColor = ChessColor.WHITE.value();
+		this.halfMoveClock = 0;
+		this.fullMoveClock = 1;
+		this.key = new ZobristKey();
+		this.pawnKey = new ZobristKey();
+		this.checkers = UNKNOWN_CHECKERS;
+		this.swapList = new int[64];
+		this.network = null;
+		this.accumulators = null;
+		this.accumulatorBase = 0;
+		this.updateAccumulator = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#clone()
+	 */
+	@Override
+	public ChessBoard clone() {
+		ChessBoard copy = new ChessBoard();
+
+		System.arraycopy(this.board, 0, copy.board, 0, this.board.length);
+		System.arraycopy(this.pieces, 0, copy.pieces, 0, this.pieces.length);
+		System.arraycopy(this.occupancy, 0, copy.occupancy, 0, this.occupancy.length);
+		System.arraycopy(this.material, 0, copy.material, 0, this.material.length);
+		System.arraycopy(this.middlegame, 0, copy.middlegame, 0, this.middlegame.length);
+		System.arraycopy(this.endgame, 0, copy.endgame, 0, this.endgame.length);
+		copy.materialKey = this.materialKey;
+		copy.materialIndex = this.materialIndex;
+
+		copy.ensureHistoryCapacity(this.stateIndex);
+		System.arraycopy(this.castlingHistory, 0, copy.castlingHistory, 0, this.stateIndex);
+		System.arraycopy(this.enPassantHistory, 0, copy.enPassantHistory, 0, this.stateIndex);
+		System.arraycopy(this.halfMoveHistory, 0, copy.halfMoveHistory, 0, this.stateIndex);
+		System.arraycopy(this.capturedHistory, 0, copy.capturedHistory, 0, this.stateIndex);
+		System.arraycopy(this.keyHistory, 0, copy.keyHistory, 0, this.stateIndex);
+		System.arraycopy(this.checkersHistory, 0, copy.checkersHistory, 0, this.stateIndex);
+		copy.stateIndex = this.stateIndex;
+
+		if (this.network != null) {
+			copy.network = this.network;
+			copy.accumulators = this.accumulators.clone();
+			copy.accumulatorBase = this.accumulatorBase;
+		}
+
+		copy.castlingPermissions = this.castlingPermissions;
+		copy.enPassantPosition = this.enPassantPosition;
+		copy.activeColor = this.activeColor;
+		copy.halfMoveClock = this.halfMoveClock;
+		copy.fullMoveClock = this.fullMoveClock;
+		copy.key.setKey(this.key.getKey());
+		copy.pawnKey.setKey(this.pawnKey.getKey());
+		copy.checkers = this.checkers;
+
+		return copy;
+	}
+
+	/**
+	 * Sets the neural network used by evaluateNetwork, or removes it if the
+	 * given network is null. The first layer of the network is computed for
+	 * the current position and is then updated as moves are made and unmade.
+	 * 
+	 * @param network
+	 *            the network to evaluate positions with, or null
+	 */
+	public void setNetwork(NeuralNetwork network) {
+		this.network = network;
+		if (network == null) {
+			this.accumulators = null;
+			return;
 		}
 
-		this.occupancy = new Bitboard[ChessColor.values().length + 1];
-		for (int i = 0; i < occupancy.length; i++) {
-			occupancy[i] = new Bitboard();
+		this.accumulators = new short[(keyHistory.length + 1) * 2 * network.getHiddenSize()];
+		refreshAccumulator();
+	}
+
+	/**
+	 * Replaces the position with the given pieces and active color, without
+	 * any castling rights or en passant square. The undo stack is emptied, so
+	 * a board can be reused for many positions without allocating.
+	 * 
+	 * @param pieces
+	 *            the bitboard value of every piece, indexed by the serialized
+	 *            piece
+	 * @param activeColor
+	 *            the color to move
+	 */
+	public void load(long[] pieces, int activeColor) {
+		if (pieces.length != ChessPiece.values().length) {
+			throw new IllegalArgumentException("Piece count is not valid");
+		} else if (!ChessColor.isValid(activeColor)) {
+			throw new IllegalArgumentException("Color value is not valid");
 		}
 
-		// TODO Implement a standard for this and a class with this as a
-		// constant
-		this.savedStates = new State[1024];
-		this.stateIndex = 0;
+		// The accumulator is computed once the new pieces are in place
+		this.updateAccumulator = false;
+		for (long bits = occupancy[BOTH_COLOR]; bits != 0; bits &= bits - 1) {
+			clear(Position.getPosition(Long.numberOfTrailingZeros(bits)));
+		}
+
+		// With the board empty only the castling, en passant and color toggles
+		// are left in the key
+		this.key.setKey(0L);
+		for (int piece = 0; piece < pieces.length; piece++) {
+			for (long bits = pieces[piece]; bits != 0; bits &= bits - 1) {
+				set(Position.getPosition(Long.numberOfTrailingZeros(bits)), piece);
+			}
+		}
+		this.updateAccumulator = true;
 
+		if (activeColor != ChessColor.WHITE.value()) {
+			this.key.toggleActiveColor();
+		}
+		this.stateIndex = 0;
 		this.castlingPermissions = CastlingBitFlags.NO_CASTLING;
 		this.enPassantPosition = Position.NULL_POSITION;
-		this.activeColor = ChessColor.WHITE.value();
+		this.activeColor = activeColor;
 		this.halfMoveClock = 0;
 		this.fullMoveClock = 1;
-		this.key = new ZobristKey();
+		this.checkers = UNKNOWN_CHECKERS;
+
+		if (network != null) {
+			refreshAccumulator();
+		}
+	}
+
+	// Computes the accumulator of the current position from scratch, positions
+	// further down the undo stack are rebuilt when they are returned to
+	private void refreshAccumulator() {
+		this.accumulatorBase = stateIndex;
+
+		int offset = stateIndex * 2 * network.getHiddenSize();
+		network.reset(accumulators, offset);
+		for (int square = 0; square < 64; square++) {
+			int piece = board[Position.from(square & 7, square >>> 3)];
+			if (piece != ChessPiece.NULL_PIECE) {
+				network.add(accumulators, offset, piece, square);
+			}
+		}
+	}
+
+	/**
+	 * Returns the neural network used by evaluateNetwork, or null if there is
+	 * none
+	 * 
+	 * @return the neural network of this position, or null
+	 */
+	public NeuralNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Evaluates the current position with the neural network from the point
+	 * of view of the active color. Only the output layer is computed, the
+	 * first layer is kept up to date as pieces move.
+	 * 
+	 * @return the network evaluation of the current position
+	 */
+	public int evaluateNetwork() {
+		if (network == null) {
+			throw new IllegalStateException("No network is set");
+		}
+
+		return network.evaluate(accumulators, stateIndex * 2 * network.getHiddenSize(),
+				activeColor);
+	}
+
+	// Grows the undo stack so that it holds at least the given number of
+	// entries
+	private void ensureHistoryCapacity(int capacity) {
+		if (capacity <= keyHistory.length) {
+			return;
+		}
+
+		int length = Math.max(capacity, keyHistory.length * 2);
+		castlingHistory = Arrays.copyOf(castlingHistory, length);
+		enPassantHistory = Arrays.copyOf(enPassantHistory, length);
+		halfMoveHistory = Arrays.copyOf(halfMoveHistory, length);
+		capturedHistory = Arrays.copyOf(capturedHistory, length);
+		keyHistory = Arrays.copyOf(keyHistory, length);
+		checkersHistory = Arrays.copyOf(checkersHistory, length);
 	}
 
 	/**
@@ -138,6 +341,47 @@ public class ChessBoard {
 		return key;
 	}
 
+	/**
+	 * Returns the Zobrist hash key of the pawns in this position, positions
+	 * with the same pawn structure share the same pawn key
+	 * 
+	 * @return the Zobrist hash key of the pawns in this position
+	 */
+	public ZobristKey getPawnZobristKey() {
+		return pawnKey;
+	}
+
+	/**
+	 * Returns the count of each piece type of each color in this position,
+	 * packed into five bit fields with white pawns in the lowest bits. Kings
+	 * are not counted.
+	 * 
+	 * @return the packed material counts of this position
+	 */
+	public long getMaterialKey() {
+		return materialKey;
+	}
+
+	/**
+	 * Returns the MaterialTable entry for the material of this position
+	 * 
+	 * @return the packed MaterialTable entry of this position
+	 */
+	public int getMaterialEntry() {
+		return MaterialTable.get(materialKey, materialIndex);
+	}
+
+	/**
+	 * Returns the game phase of this position, from
+	 * PieceSquareTable.MAX_PHASE or more with all pieces on the board down to
+	 * zero with only kings and pawns left
+	 * 
+	 * @return the game phase of this position
+	 */
+	public int getPhase() {
+		return MaterialTable.getPhase(getMaterialEntry());
+	}
+
 	/**
 	 * Returns the ChessPiece located in the given position
 	 * 
@@ -190,7 +434,27 @@ public class ChessBoard {
 			throw new IllegalArgumentException("Piece type value is not valid");
 		}
 
-		return pieces[color][type].clone();
+		return Bitboard.from(pieces[color * NUM_TYPES + type]);
+	}
+
+	/**
+	 * Returns the raw Bitboard value of the locations of all pieces with given
+	 * type and color, without allocating a Bitboard
+	 * 
+	 * @param color
+	 *            the color to retrieve piece information for, or BOTH_COLOR
+	 * @param type
+	 *            the type to retrieve piece information for
+	 * @return the locations of all pieces with given type and color
+	 */
+	public long getPiecesValue(int color, int type) {
+		if (!ChessColor.isValid(color) && color != BOTH_COLOR) {
+			throw new IllegalArgumentException("Color value is not valid");
+		} else if (!PieceType.isValid(type)) {
+			throw new IllegalArgumentException("Piece type value is not valid");
+		}
+
+		return pieces[color * NUM_TYPES + type];
 	}
 
 	/**
@@ -207,7 +471,40 @@ public class ChessBoard {
 			throw new IllegalArgumentException("Color value is not valid");
 		}
 
-		return occupancy[color].clone();
+		return Bitboard.from(occupancy[color]);
+	}
+
+	/**
+	 * Returns the raw Bitboard value of the occupancy of all pieces with given
+	 * color, without allocating a Bitboard
+	 * 
+	 * @param color
+	 *            the color to retrieve occupancy information for, or
+	 *            BOTH_COLOR
+	 * @return the occupancy of all pieces with given color
+	 */
+	public long getOccupancyValue(int color) {
+		if (!ChessColor.isValid(color) && color != BOTH_COLOR) {
+			throw new IllegalArgumentException("Color value is not valid");
+		}
+
+		return occupancy[color];
+	}
+
+	/**
+	 * Returns the bit index of the king with given color, or 64 if there is
+	 * no such king
+	 * 
+	 * @param color
+	 *            the color of the king
+	 * @return the bit index of the king with given color
+	 */
+	public int getKingSquare(int color) {
+		if (!ChessColor.isValid(color)) {
+			throw new IllegalArgumentException("Color value is not valid");
+		}
+
+		return Long.numberOfTrailingZeros(pieces[color * NUM_TYPES + PieceType.KING.value()]);
 	}
 
 	private void set(int position, int piece) {
@@ -219,13 +516,33 @@ public class ChessBoard {
 			throw new IllegalStateException("Given position is not empty");
 		}
 
-		pieces[ChessPiece.getColor(piece)][ChessPiece.getPieceType(piece)].set(position);
-		pieces[BOTH_COLOR][ChessPiece.getPieceType(piece)].set(position);
+		int square = Position.getBitIndex(position);
+		int color = ChessPiece.getColor(piece);
+		int type = ChessPiece.getPieceType(piece);
 
-		occupancy[ChessPiece.getColor(piece)].set(position);
-		occupancy[BOTH_COLOR].set(position);
+		long bit = 1L << square;
+		pieces[color * NUM_TYPES + type] |= bit;
+		pieces[BOTH_COLOR * NUM_TYPES + type] |= bit;
+
+		occupancy[color] |= bit;
+		occupancy[BOTH_COLOR] |= bit;
+
+		if (type != PieceType.KING.value()) {
+			material[color] += PieceType.getScore(type);
+
+			materialKey += MaterialTable.getKeyIncrement(color, type);
+			materialIndex += MaterialTable.getStride(color, type);
+		}
+		middlegame[color] += PieceSquareTable.middlegame(piece, square);
+		endgame[color] += PieceSquareTable.endgame(piece, square);
 
 		key.toggleBoard(position, piece);
+		if (type == PieceType.PAWN.value()) {
+			pawnKey.toggleBoard(position, piece);
+		}
+		if (network != null && updateAccumulator) {
+			network.add(accumulators, stateIndex * 2 * network.getHiddenSize(), piece, square);
+		}
 
 		board[position] = piece;
 	}
@@ -239,13 +556,34 @@ public class ChessBoard {
 
 		int oldPiece = board[position];
 
-		pieces[ChessPiece.getColor(oldPiece)][ChessPiece.getPieceType(oldPiece)].clear(position);
-		pieces[BOTH_COLOR][ChessPiece.getPieceType(oldPiece)].clear(position);
+		int square = Position.getBitIndex(position);
+		int color = ChessPiece.getColor(oldPiece);
+		int type = ChessPiece.getPieceType(oldPiece);
+
+		long bit = 1L << square;
+		pieces[color * NUM_TYPES + type] &= ~bit;
+		pieces[BOTH_COLOR * NUM_TYPES + type] &= ~bit;
+
+		occupancy[color] &= ~bit;
+		occupancy[BOTH_COLOR] &= ~bit;
 
-		occupancy[ChessPiece.getColor(oldPiece)].clear(position);
-		occupancy[BOTH_COLOR].clear(position);
+		if (type != PieceType.KING.value()) {
+			material[color] -= PieceType.getScore(type);
+
+			materialKey -= MaterialTable.getKeyIncrement(color, type);
+			materialIndex -= MaterialTable.getStride(color, type);
+		}
+		middlegame[color] -= PieceSquareTable.middlegame(oldPiece, square);
+		endgame[color] -= PieceSquareTable.endgame(oldPiece, square);
 
 		key.toggleBoard(position, oldPiece);
+		if (type == PieceType.PAWN.value()) {
+			pawnKey.toggleBoard(position, oldPiece);
+		}
+		if (network != null && updateAccumulator) {
+			network.remove(accumulators, stateIndex * 2 * network.getHiddenSize(), oldPiece,
+					square);
+		}
 
 		board[position] = ChessPiece.NULL_PIECE;
 
@@ -291,7 +629,7 @@ public class ChessBoard {
 	 *         any pieces of with the given color
 	 */
 	public boolean isEmptyOfColorMask(Bitboard board, int psuedoColor) {
-		return Bitboard.and(board, occupancy[psuedoColor]).size() == 0;
+		return (board.value() & occupancy[psuedoColor]) == 0;
 	}
 
 	/**
@@ -300,7 +638,24 @@ public class ChessBoard {
 	 * @return true if the activeColor is in check in this position
 	 */
 	public boolean isCheck() {
-		return isCheck(activeColor);
+		return getCheckers() != 0L;
+	}
+
+	/**
+	 * Returns the positions of the pieces that give check to the activeColor as
+	 * a bitboard value. The result is cached until the next move is made or
+	 * unmade.
+	 * 
+	 * @return the pieces that give check to the activeColor
+	 */
+	public long getCheckers() {
+		if (checkers == UNKNOWN_CHECKERS) {
+			long kings = pieces[activeColor * NUM_TYPES + PieceType.KING.value()];
+			checkers = kings == 0L ? 0L : attackers(Long.numberOfTrailingZeros(kings),
+					ChessColor.opposite(activeColor), occupancy[BOTH_COLOR]);
+		}
+
+		return checkers;
 	}
 
 	/**
@@ -311,8 +666,25 @@ public class ChessBoard {
 	 * @return true if the given color is in check in this position
 	 */
 	public boolean isCheck(int color) {
-		return pieces[color][PieceType.KING.value()].size() > 0 && isAttacked(
-				pieces[color][PieceType.KING.value()].getSingle(), ChessColor.opposite(color));
+		long kings = pieces[color * NUM_TYPES + PieceType.KING.value()];
+		return kings != 0L && attackers(Long.numberOfTrailingZeros(kings),
+				ChessColor.opposite(color), occupancy[BOTH_COLOR]) != 0L;
+	}
+
+	/**
+	 * Returns true if the given color has a piece other than pawns and its
+	 * king
+	 * 
+	 * @param color
+	 *            the color to check the pieces of
+	 * @return true if the given color has a knight, bishop, rook or queen
+	 */
+	public boolean hasNonPawnMaterial(int color) {
+		int friend = color * NUM_TYPES;
+		return (pieces[friend + PieceType.KNIGHT.value()]
+				| pieces[friend + PieceType.BISHOP.value()]
+				| pieces[friend + PieceType.ROOK.value()]
+				| pieces[friend + PieceType.QUEEN.value()]) != 0L;
 	}
 
 	/**
@@ -323,17 +695,7 @@ public class ChessBoard {
 	 *         the other
 	 */
 	public boolean hasInsufficientMaterial() {
-		boolean result = true;
-		for (ChessColor color : ChessColor.values()) {
-			for (PieceType type : EnumSet.of(PieceType.PAWN, PieceType.ROOK, PieceType.QUEEN)) {
-				result &= pieces[color.value()][type.value()].size() == 0;
-			}
-
-			result &= pieces[color.value()][PieceType.BISHOP.value()].size()
-					+ pieces[color.value()][PieceType.KNIGHT.value()].size() <= 1;
-		}
-
-		return result;
+		return MaterialTable.isDraw(getMaterialEntry());
 	}
 
 	/**
@@ -344,7 +706,7 @@ public class ChessBoard {
 	public boolean isRepetition() {
 		int j = Math.max(0, stateIndex - halfMoveClock);
 		for (int i = stateIndex - 2; i >= j; i -= 2) {
-			if (key.getKey() == savedStates[i].zobristKey) {
+			if (key.getKey() == keyHistory[i]) {
 				return true;
 			}
 		}
@@ -352,232 +714,346 @@ public class ChessBoard {
 		return false;
 	}
 
+	// Piece values used by static exchange evaluation, a king is worth more
+	// than everything else combined without overflowing the swap list
+	private static final int[] exchangeValues = new int[NUM_TYPES];
+
+	static {
+		for (PieceType type : PieceType.values()) {
+			exchangeValues[type.value()] = type.score();
+		}
+	}
+
 	/**
 	 * Evaluate the given move using the context of the position and static
 	 * exchange evaluation. This calculates the likely material change to be
-	 * lost or gained.
+	 * lost or gained if both sides keep recapturing on the end position of the
+	 * move with their least valuable piece, and either side may stop when
+	 * recapturing would lose material. Pieces behind the capturing sliders join
+	 * in as the pieces in front of them are used up. The position is not
+	 * changed.
 	 * 
 	 * @param move
 	 *            the move to evaluate
 	 * @return the likely material change
 	 */
 	public int staticExchangeEvaluation(int move) {
-		if (Move.getEndPiece(move) == ChessPiece.NULL_PIECE) {
-			throw new IllegalArgumentException("Move value is not a capture");
+		int to = Position.getBitIndex(Move.getEndPosition(move));
+		int from = Position.getBitIndex(Move.getStartPosition(move));
+		int color = ChessPiece.getColor(Move.getStartPiece(move));
+
+		long occupied = occupancy[BOTH_COLOR] ^ (1L << from);
+		int[] gain = swapList;
+		gain[0] = capturedValue(move);
+		int attackerValue = attackerValue(move);
+		if (Move.getFlags(move) == Move.Flags.EN_PASSANT.value()) {
+			occupied ^= 1L << (color == ChessColor.WHITE.value() ? to - 8 : to + 8);
 		}
 
-		int endPiece = Move.getEndPiece(move);
-		int value = 0;
-		this.move(move);
-		value = ChessPiece.from(endPiece).score()
-				- staticExchanceEvaluation(Move.getEndPosition(move), this.activeColor);
-		this.unmove(move);
+		long attackers = (attackers(to, ChessColor.WHITE.value(), occupied)
+				| attackers(to, ChessColor.BLACK.value(), occupied)) & occupied;
+		int side = ChessColor.opposite(color);
+		int depth = 0;
+		while (true) {
+			depth++;
+			// The gain if the piece on the square is recaptured
+			gain[depth] = attackerValue - gain[depth - 1];
+
+			long sideAttackers = attackers & occupancy[side];
+			if (sideAttackers == 0L) {
+				break;
+			}
 
-		return value;
+			int type = leastValuableAttacker(sideAttackers, side);
+			long bit = Long.lowestOneBit(sideAttackers & pieces[side * NUM_TYPES + type]);
+			occupied ^= bit;
+			attackers = (attackers | xrayAttackers(to, type, occupied)) & occupied;
+			attackerValue = exchangeValues[type];
+			side = ChessColor.opposite(side);
+		}
+
+		while (--depth > 0) {
+			gain[depth - 1] = -Math.max(-gain[depth - 1], gain[depth]);
+		}
+
+		return gain[0];
 	}
 
-	private int staticExchanceEvaluation(int endPosition, int color) {
-		int value = 0;
-		int leastValAttPiecePos = Position.NULL_POSITION;
-		int leastValAttPieceScore = Integer.MAX_VALUE;
+	/**
+	 * Returns true if the static exchange evaluation of the given move is at
+	 * least the given threshold. This stops as soon as the outcome is known,
+	 * so it is cheaper than comparing the result of staticExchangeEvaluation.
+	 * The position is not changed.
+	 * 
+	 * @param move
+	 *            the move to evaluate
+	 * @param threshold
+	 *            the smallest material change that passes
+	 * @return true if the likely material change is at least the threshold
+	 */
+	public boolean see(int move, int threshold) {
+		int to = Position.getBitIndex(Move.getEndPosition(move));
+		int from = Position.getBitIndex(Move.getStartPosition(move));
+		int color = ChessPiece.getColor(Move.getStartPiece(move));
+
+		// Even if the moved piece is taken for free the move does not pass
+		int swap = capturedValue(move) - threshold;
+		if (swap < 0) {
+			return false;
+		}
+
+		// Even if the moved piece is lost the move passes
+		swap = attackerValue(move) - swap;
+		if (swap <= 0) {
+			return true;
+		}
 
-		Bitboard attackers = attackers(endPosition, color);
-		if (attackers.size() == 0) {
-			return value;
+		long occupied = occupancy[BOTH_COLOR] ^ (1L << from);
+		if (Move.getFlags(move) == Move.Flags.EN_PASSANT.value()) {
+			occupied ^= 1L << (color == ChessColor.WHITE.value() ? to - 8 : to + 8);
 		}
 
-		for (Integer attackerPosition : attackers) {
-			int piece = get(attackerPosition);
-			if (leastValAttPieceScore > ChessPiece.getScore(piece)) {
-				leastValAttPieceScore = ChessPiece.getScore(piece);
-				leastValAttPiecePos = attackerPosition;
+		long attackers = (attackers(to, ChessColor.WHITE.value(), occupied)
+				| attackers(to, ChessColor.BLACK.value(), occupied)) & occupied;
+		int side = color;
+		boolean result = true;
+		while (true) {
+			side = ChessColor.opposite(side);
+			attackers &= occupied;
+			long sideAttackers = attackers & occupancy[side];
+			if (sideAttackers == 0L) {
+				break;
+			}
+
+			result = !result;
+			int type = leastValuableAttacker(sideAttackers, side);
+			if (type == PieceType.KING.value()) {
+				// The king can only recapture if the other side has run out
+				return (attackers & occupancy[ChessColor.opposite(side)]) != 0L ? !result
+						: result;
 			}
+
+			// swap is what the side to recapture has to win back to pass
+			swap = exchangeValues[type] - swap;
+			if (swap < (result ? 1 : 0)) {
+				break;
+			}
+
+			long bit = Long.lowestOneBit(sideAttackers & pieces[side * NUM_TYPES + type]);
+			occupied ^= bit;
+			attackers |= xrayAttackers(to, type, occupied);
 		}
 
-		if (leastValAttPiecePos != Position.NULL_POSITION) {
-			int leastValPiece = this.get(leastValAttPiecePos);
-			int attacked = this.get(endPosition);
-			int leastValCapture = Move.value(leastValPiece, attacked, leastValAttPiecePos,
-					endPosition, Move.Flags.CAPTURE.value(), PieceType.NULL_PROMOTION);
+		return result;
+	}
 
-			this.move(leastValCapture);
-			value = Math.max(0, leastValAttPieceScore
-					- staticExchanceEvaluation(endPosition, this.activeColor));
-			this.unmove(leastValCapture);
+	// The material taken by the given move, counting the gain of a promotion
+	private static int capturedValue(int move) {
+		int value = 0;
+		if (Move.getFlags(move) == Move.Flags.EN_PASSANT.value()) {
+			value = exchangeValues[PieceType.PAWN.value()];
+		} else if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE) {
+			value = exchangeValues[ChessPiece.getPieceType(Move.getEndPiece(move))];
+		}
+
+		if (Move.getFlags(move) == Move.Flags.PROMOTION.value()) {
+			value += exchangeValues[Move.getPromotionPieceType(move)]
+					- exchangeValues[PieceType.PAWN.value()];
 		}
 
 		return value;
 	}
 
+	// The value of the piece left standing on the end position of the move
+	private static int attackerValue(int move) {
+		if (Move.getFlags(move) == Move.Flags.PROMOTION.value()) {
+			return exchangeValues[Move.getPromotionPieceType(move)];
+		}
+
+		return exchangeValues[ChessPiece.getPieceType(Move.getStartPiece(move))];
+	}
+
+	private int leastValuableAttacker(long sideAttackers, int side) {
+		for (int type = PieceType.PAWN.value(); type < PieceType.KING.value(); type++) {
+			if ((sideAttackers & pieces[side * NUM_TYPES + type]) != 0L) {
+				return type;
+			}
+		}
+
+		return PieceType.KING.value();
+	}
+
+	// The sliders that attack the given square once a piece of the given type
+	// in front of them has been removed from the occupancy
+	private long xrayAttackers(int square, int type, long occupied) {
+		long queens = pieces[BOTH_COLOR * NUM_TYPES + PieceType.QUEEN.value()];
+		long result = 0L;
+		if (type == PieceType.PAWN.value() || type == PieceType.BISHOP.value()
+				|| type == PieceType.QUEEN.value()) {
+			result |= Attacks.bishop(square, occupied)
+					& (pieces[BOTH_COLOR * NUM_TYPES + PieceType.BISHOP.value()] | queens);
+		}
+		if (type == PieceType.ROOK.value() || type == PieceType.QUEEN.value()) {
+			result |= Attacks.rook(square, occupied)
+					& (pieces[BOTH_COLOR * NUM_TYPES + PieceType.ROOK.value()] | queens);
+		}
+
+		return result;
+	}
+
 	private static final double MATERIAL_WEIGHT = 1.0;
 	private static final double MOBILITY_WEIGHT = 5.0;
 
 	/**
-	 * Evaluates the current position based on the material score and mobility
-	 * of the current active color.
+	 * The mobility score a lazy evaluation assumes the active color could
+	 * gain at most. Mobility never lowers the evaluation, so a material score
+	 * at least beta is final, and one this far below alpha is treated as
+	 * final.
+	 */
+	public static final int LAZY_MARGIN = 400;
+
+	/**
+	 * Evaluates the current position based on the material score, the
+	 * piece-square bonuses and the mobility of the current active color.
 	 * 
 	 * @return the evaluation of the current position, taking into account
-	 *         material and mobility
+	 *         material, piece placement and mobility
 	 */
 	public int evaluate() {
-		int material = 0;
-		for (PieceType type : PieceType.values()) {
-			material += type.score() * (pieces[activeColor][type.value()].size()
-					- pieces[ChessColor.opposite(activeColor)][type.value()].size());
-		}
+		return evaluateMaterial() + evaluateMobility();
+	}
 
-		int mobility = 0;
+	/**
+	 * Evaluates the current position like evaluate, but returns the material
+	 * and piece-square score alone when it is already outside the given
+	 * window. The material score is returned if it is at least beta or at
+	 * least LAZY_MARGIN below alpha, since the mobility score would then be
+	 * unlikely to change the outcome of a search.
+	 * 
+	 * @param alpha
+	 *            the lower bound of the search window
+	 * @param beta
+	 *            the upper bound of the search window
+	 * @return the evaluation of the current position, or its material score if
+	 *         that is far enough outside the window
+	 */
+	public int evaluate(int alpha, int beta) {
+		int material = evaluateMaterial();
+		if (material >= beta || material + LAZY_MARGIN <= alpha) {
+			return material;
+		}
 
-		final Bitboard enemyOccupancy = occupancy[ChessColor.opposite(activeColor)];
-		final Bitboard friendOccupancy = occupancy[activeColor];
+		return material + evaluateMobility();
+	}
 
-		Bitboard pawnMobility = pieces[activeColor][PieceType.PAWN.value()].clone();
-		pawnMobility.operate(new BitboardOperation() {
+	/**
+	 * Evaluates the current position based on the material score and the
+	 * piece-square bonuses alone, in constant time
+	 * 
+	 * @return the material and piece-square score of the current active color
+	 */
+	public int evaluateMaterial() {
+		int enemyColor = ChessColor.opposite(activeColor);
 
-			@Override
-			public long operate(long board) {
-				long attacks = 0L;
-				if (activeColor == ChessColor.WHITE.value()) {
-					long nw = (board << 7) & ~Position.File.F_H.board().value();
-					long ne = (board << 9) & ~Position.File.F_A.board().value();
-					attacks = nw | ne;
-				} else {
-					long ne = (board << 7) & ~Position.File.F_A.board().value();
-					long nw = (board << 9) & ~Position.File.F_H.board().value();
-					attacks = nw | ne;
-				}
-				attacks &= enemyOccupancy.value();
-
-				long moves = 0L;
-				if (activeColor == ChessColor.WHITE.value()) {
-					long singleMove = (board << 8);
-					long doubleMove = ((singleMove & ~enemyOccupancy.value()) << 8);
-					moves = singleMove | doubleMove;
-				} else {
-					long singleMove = (board >>> 8);
-					long doubleMove = ((singleMove & ~enemyOccupancy.value()) >>> 8);
-					moves = singleMove | doubleMove;
-				}
-				moves &= ~enemyOccupancy.value();
+		int material = this.material[activeColor] - this.material[enemyColor]
+				+ PieceSquareTable.taper(middlegame[activeColor] - middlegame[enemyColor],
+						endgame[activeColor] - endgame[enemyColor], getPhase());
 
-				return moves | attacks;
-			}
+		return (int) (MATERIAL_WEIGHT * material);
+	}
 
-		});
+	private int evaluateMobility() {
+		int friend = activeColor * NUM_TYPES;
 
-		Bitboard knightMobility = pieces[activeColor][PieceType.KNIGHT.value()].clone();
-		knightMobility.operate(new BitboardOperation() {
+		long enemyOccupancy = occupancy[ChessColor.opposite(activeColor)];
+		long friendOccupancy = occupancy[activeColor];
+		long occupied = occupancy[BOTH_COLOR];
 
-			private final int[] shifts = { 8 - 1 - 1, 8 + 8 - 1, 8 + 8 + 1, 8 + 1 + 1 };
+		long pawnMobility =
+				pawnMobility(pieces[friend + PieceType.PAWN.value()], activeColor, enemyOccupancy);
+		long knightMobility =
+				knightMobility(pieces[friend + PieceType.KNIGHT.value()]) & ~friendOccupancy;
+		long kingMobility =
+				kingMobility(pieces[friend + PieceType.KING.value()]) & ~friendOccupancy;
 
-			private final long[] maskOff =
-					{ Position.File.F_A.board().value() | Position.File.F_B.board().value(),
-							Position.File.F_G.board().value() | Position.File.F_H.board().value() };
+		long rookAttacks = 0L;
+		for (long rooks = pieces[friend + PieceType.ROOK.value()]; rooks != 0;
+				rooks &= rooks - 1) {
+			rookAttacks |= Attacks.rook(Long.numberOfTrailingZeros(rooks), occupied);
+		}
+		long rookMobility = rookAttacks & ~friendOccupancy;
 
-			@Override
-			public long operate(long board) {
-				long[] results = new long[8];
-				for (int i = 0; i < shifts.length; i++) {
-					results[i] |= (board << shifts[i]) & ~maskOff[i / 2];
-					results[i + 4] |= (board >>> shifts[i]) & ~maskOff[(i / 2) ^ 1];
-				}
+		long bishopAttacks = 0L;
+		for (long bishops = pieces[friend + PieceType.BISHOP.value()]; bishops != 0;
+				bishops &= bishops - 1) {
+			bishopAttacks |= Attacks.bishop(Long.numberOfTrailingZeros(bishops), occupied);
+		}
+		long bishopMobility = bishopAttacks & ~friendOccupancy;
 
-				long result = 0L;
-				for (int i = 0; i < results.length; i++) {
-					result |= results[i];
-				}
+		long queenAttacks = 0L;
+		for (long queens = pieces[friend + PieceType.QUEEN.value()]; queens != 0;
+				queens &= queens - 1) {
+			queenAttacks |= Attacks.queen(Long.numberOfTrailingZeros(queens), occupied);
+		}
+		long queenMobility = queenAttacks & ~friendOccupancy;
 
-				return result & ~friendOccupancy.value();
-			}
-		});
-
-		Bitboard kingMobility = pieces[activeColor][PieceType.KNIGHT.value()].clone();
-		kingMobility.operate(new BitboardOperation() {
-
-			@Override
-			public long operate(long board) {
-				long[] results = new long[8];
-				results[0] = board << 8;
-				results[1] = board >> 8;
-				results[2] = (board << 1) & ~Position.File.F_A.board().value();
-				results[3] = (board >> 1) & ~Position.File.F_H.board().value();
-
-				results[4] = (board << 9) & ~Position.File.F_A.board().value();
-				results[5] = (board >> 7) & ~Position.File.F_H.board().value();
-				results[6] = (board << 7) & ~Position.File.F_A.board().value();
-				results[7] = (board >> 9) & ~Position.File.F_H.board().value();
-
-				long result = 0L;
-				for (int i = 0; i < results.length; i++) {
-					result |= results[i];
-				}
+		int mobility = Long.bitCount(pawnMobility) + Long.bitCount(knightMobility)
+				+ Long.bitCount(kingMobility) + Long.bitCount(rookMobility)
+				+ Long.bitCount(bishopMobility) + Long.bitCount(queenMobility);
 
-				return result & ~friendOccupancy.value();
-			}
+		return (int) (MOBILITY_WEIGHT * mobility);
+	}
 
-		});
+	private static final long FILE_A = Position.File.F_A.board().value();
+	private static final long FILE_B = Position.File.F_B.board().value();
+	private static final long FILE_G = Position.File.F_G.board().value();
+	private static final long FILE_H = Position.File.F_H.board().value();
 
-		Bitboard rookMobility = new Bitboard();
-		for (Integer pos : pieces[activeColor][PieceType.ROOK.value()].clone()) {
-			for (int direction : MoveGeneration.rookDirections) {
-				int position = pos + direction;
-				while (Position.isValid(position)) {
-					if (ChessPiece.isValid(this.get(position))) {
-						if (ChessPiece.getColor(this.get(position)) != activeColor) {
-							rookMobility.set(position);
-						}
+	private static final int[] knightShifts = { 8 - 1 - 1, 8 + 8 - 1, 8 + 8 + 1, 8 + 1 + 1 };
+	private static final long[] knightMaskOff = { FILE_A | FILE_B, FILE_G | FILE_H };
 
-						break;
-					} else {
-						rookMobility.set(position);
-						position += direction;
-					}
-				}
-			}
+	private static long pawnMobility(long board, int color, long enemyOccupancy) {
+		long attacks = 0L;
+		if (color == ChessColor.WHITE.value()) {
+			long nw = (board << 7) & ~FILE_H;
+			long ne = (board << 9) & ~FILE_A;
+			attacks = nw | ne;
+		} else {
+			long ne = (board << 7) & ~FILE_A;
+			long nw = (board << 9) & ~FILE_H;
+			attacks = nw | ne;
 		}
+		attacks &= enemyOccupancy;
 
-		Bitboard bishopMobility = new Bitboard();
-		for (Integer pos : pieces[activeColor][PieceType.BISHOP.value()].clone()) {
-			for (int direction : MoveGeneration.bishopDirections) {
-				int position = pos + direction;
-				while (Position.isValid(position)) {
-					if (ChessPiece.isValid(this.get(position))) {
-						if (ChessPiece.getColor(this.get(position)) != activeColor) {
-							bishopMobility.set(position);
-						}
-
-						break;
-					} else {
-						bishopMobility.set(position);
-						position += direction;
-					}
-				}
-			}
+		long moves = 0L;
+		if (color == ChessColor.WHITE.value()) {
+			long singleMove = (board << 8);
+			long doubleMove = ((singleMove & ~enemyOccupancy) << 8);
+			moves = singleMove | doubleMove;
+		} else {
+			long singleMove = (board >>> 8);
+			long doubleMove = ((singleMove & ~enemyOccupancy) >>> 8);
+			moves = singleMove | doubleMove;
 		}
+		moves &= ~enemyOccupancy;
 
-		Bitboard queenMobility = new Bitboard();
-		for (Integer pos : pieces[activeColor][PieceType.QUEEN.value()].clone()) {
-			for (int direction : MoveGeneration.queenDirections) {
-				int position = pos + direction;
-				while (Position.isValid(position)) {
-					if (ChessPiece.isValid(this.get(position))) {
-						if (ChessPiece.getColor(this.get(position)) != activeColor) {
-							queenMobility.set(position);
-						}
+		return moves | attacks;
+	}
 
-						break;
-					} else {
-						queenMobility.set(position);
-						position += direction;
-					}
-				}
-			}
+	private static long knightMobility(long board) {
+		long result = 0L;
+		for (int i = 0; i < knightShifts.length; i++) {
+			result |= (board << knightShifts[i]) & ~knightMaskOff[i / 2];
+			result |= (board >>> knightShifts[i]) & ~knightMaskOff[(i / 2) ^ 1];
 		}
 
-		mobility = pawnMobility.size() + knightMobility.size() + kingMobility.size()
-				+ rookMobility.size() + bishopMobility.size() + queenMobility.size();
+		return result;
+	}
 
-		return (int) (MATERIAL_WEIGHT * material + MOBILITY_WEIGHT * mobility);
+	private static long kingMobility(long board) {
+		return (board << 8) | (board >> 8) | ((board << 1) & ~FILE_A) | ((board >> 1) & ~FILE_H)
+				| ((board << 9) & ~FILE_A) | ((board >> 7) & ~FILE_H)
+				| ((board << 7) & ~FILE_A) | ((board >> 9) & ~FILE_H);
 	}
 
 	/**
@@ -590,153 +1066,52 @@ public class ChessBoard {
 	 * @return true if the given position is attacked by the given color
 	 */
 	public boolean isAttacked(int position, int attackerColor) {
-		int attackingPawn = ChessPiece.fromRaw(attackerColor, PieceType.PAWN.value());
-		int attackingKnight = ChessPiece.fromRaw(attackerColor, PieceType.KNIGHT.value());
-		int attackingKing = ChessPiece.fromRaw(attackerColor, PieceType.KING.value());
-		int attackingBishop = ChessPiece.fromRaw(attackerColor, PieceType.BISHOP.value());
-		int attackingRook = ChessPiece.fromRaw(attackerColor, PieceType.ROOK.value());
-		int attackingQueen = ChessPiece.fromRaw(attackerColor, PieceType.QUEEN.value());
-
-		for (int i = 1; i < MoveGeneration.pawnOffsets[attackerColor].length; i++) {
-			int pawnPos = position - MoveGeneration.pawnOffsets[attackerColor][i];
-			if (Position.isValid(pawnPos) && this.get(pawnPos) == attackingPawn) {
-				return true;
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.knightOffsets.length; i++) {
-			int knightPos = position + MoveGeneration.knightOffsets[i];
-			if (Position.isValid(knightPos) && this.get(knightPos) == attackingKnight) {
-				return true;
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.rookDirections.length; i++) {
-			int rookPos = position + MoveGeneration.rookDirections[i];
-			while (Position.isValid(rookPos)) {
-				if (this.get(rookPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(rookPos) == attackingRook) {
-						return true;
-					} else {
-						break;
-					}
-				}
-				rookPos += MoveGeneration.rookDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.bishopDirections.length; i++) {
-			int bishopPos = position + MoveGeneration.bishopDirections[i];
-			while (Position.isValid(bishopPos)) {
-				if (this.get(bishopPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(bishopPos) == attackingBishop) {
-						return true;
-					} else {
-						break;
-					}
-				}
-				bishopPos += MoveGeneration.bishopDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.queenDirections.length; i++) {
-			int queenPos = position + MoveGeneration.queenDirections[i];
-			while (Position.isValid(queenPos)) {
-				if (this.get(queenPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(queenPos) == attackingQueen) {
-						return true;
-					} else {
-						break;
-					}
-				}
-				queenPos += MoveGeneration.queenDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.kingOffsets.length; i++) {
-			int kingPos = position + MoveGeneration.kingOffsets[i];
-			if (Position.isValid(kingPos) && this.get(kingPos) == attackingKing) {
-				return true;
-			}
-		}
-
-		return false;
+		return attackers(Position.getBitIndex(position), attackerColor,
+				occupancy[BOTH_COLOR]) != 0L;
 	}
 
+	/**
+	 * Returns a Bitboard of all the pieces of the given color attacking the
+	 * given position
+	 * 
+	 * @param position
+	 *            the position to find the attackers of
+	 * @param attackerColor
+	 *            the color that is attacking
+	 * @return a Bitboard of all the pieces of the given color attacking the
+	 *         given position
+	 */
 	public Bitboard attackers(int position, int attackerColor) {
-		int attackingPawn = ChessPiece.fromRaw(attackerColor, PieceType.PAWN.value());
-		int attackingKnight = ChessPiece.fromRaw(attackerColor, PieceType.KNIGHT.value());
-		int attackingKing = ChessPiece.fromRaw(attackerColor, PieceType.KING.value());
-		int attackingBishop = ChessPiece.fromRaw(attackerColor, PieceType.BISHOP.value());
-		int attackingRook = ChessPiece.fromRaw(attackerColor, PieceType.ROOK.value());
-		int attackingQueen = ChessPiece.fromRaw(attackerColor, PieceType.QUEEN.value());
-
-		Bitboard attackers = new Bitboard();
-
-		for (int i = 1; i < MoveGeneration.pawnOffsets[attackerColor].length; i++) {
-			int pawnPos = position - MoveGeneration.pawnOffsets[attackerColor][i];
-			if (Position.isValid(pawnPos) && this.get(pawnPos) == attackingPawn) {
-				attackers.set(pawnPos);
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.knightOffsets.length; i++) {
-			int knightPos = position + MoveGeneration.knightOffsets[i];
-			if (Position.isValid(knightPos) && this.get(knightPos) == attackingKnight) {
-				attackers.set(knightPos);
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.rookDirections.length; i++) {
-			int rookPos = position + MoveGeneration.rookDirections[i];
-			while (Position.isValid(rookPos)) {
-				if (this.get(rookPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(rookPos) == attackingRook) {
-						attackers.set(rookPos);
-					} else {
-						break;
-					}
-				}
-				rookPos += MoveGeneration.rookDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.bishopDirections.length; i++) {
-			int bishopPos = position + MoveGeneration.bishopDirections[i];
-			while (Position.isValid(bishopPos)) {
-				if (this.get(bishopPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(bishopPos) == attackingBishop) {
-						attackers.set(bishopPos);
-					} else {
-						break;
-					}
-				}
-				bishopPos += MoveGeneration.bishopDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.queenDirections.length; i++) {
-			int queenPos = position + MoveGeneration.queenDirections[i];
-			while (Position.isValid(queenPos)) {
-				if (this.get(queenPos) != ChessPiece.NULL_PIECE) {
-					if (this.get(queenPos) == attackingQueen) {
-						attackers.set(queenPos);
-					} else {
-						break;
-					}
-				}
-				queenPos += MoveGeneration.queenDirections[i];
-			}
-		}
-
-		for (int i = 0; i < MoveGeneration.kingOffsets.length; i++) {
-			int kingPos = position + MoveGeneration.kingOffsets[i];
-			if (Position.isValid(kingPos) && this.get(kingPos) == attackingKing) {
-				attackers.set(kingPos);
-			}
-		}
+		return Bitboard.from(attackers(Position.getBitIndex(position), attackerColor,
+				occupancy[BOTH_COLOR]));
+	}
 
-		return attackers;
+	/**
+	 * Returns the squares of all the pieces of the given color attacking the
+	 * given square, with sliders blocked by the given occupancy instead of the
+	 * occupancy of the board
+	 * 
+	 * @param square
+	 *            the bit index of the square to find the attackers of
+	 * @param attackerColor
+	 *            the color that is attacking
+	 * @param occupied
+	 *            the occupancy used to block sliding attacks
+	 * @return the squares of all the pieces of the given color attacking the
+	 *         given square
+	 */
+	public long attackers(int square, int attackerColor, long occupied) {
+		int base = attackerColor * NUM_TYPES;
+		long queens = pieces[base + PieceType.QUEEN.value()];
+
+		return (Attacks.pawn(ChessColor.opposite(attackerColor), square)
+				& pieces[base + PieceType.PAWN.value()])
+				| (Attacks.knight(square) & pieces[base + PieceType.KNIGHT.value()])
+				| (Attacks.king(square) & pieces[base + PieceType.KING.value()])
+				| (Attacks.bishop(square, occupied)
+						& (pieces[base + PieceType.BISHOP.value()] | queens))
+				| (Attacks.rook(square, occupied)
+						& (pieces[base + PieceType.ROOK.value()] | queens));
 	}
 
 	/**
@@ -781,8 +1156,18 @@ public class ChessBoard {
 
 	private void move(int startPos, int endPos, int startPiece, int startColor, int endPiece,
 			int flags, int promotionType) {
-		savedStates[stateIndex++] = new State(this.castlingPermissions, this.enPassantPosition,
-				this.halfMoveClock, this.key.getKey());
+		ensureHistoryCapacity(stateIndex + 1);
+		castlingHistory[stateIndex] = this.castlingPermissions;
+		enPassantHistory[stateIndex] = this.enPassantPosition;
+		halfMoveHistory[stateIndex] = this.halfMoveClock;
+		capturedHistory[stateIndex] = endPiece;
+		keyHistory[stateIndex] = this.key.getKey();
+		checkersHistory[stateIndex] = this.checkers;
+		stateIndex++;
+		if (network != null) {
+			pushAccumulator();
+		}
+		this.checkers = UNKNOWN_CHECKERS;
 
 		// Check for capture, and remove from the board
 		// Covers en passant captures
@@ -864,6 +1249,70 @@ public class ChessBoard {
 		}
 	}
 
+	/**
+	 * Passes the turn to the other color without moving a piece. The en
+	 * passant square is cleared and the half move clock is reset, so that no
+	 * repetition is found across the null move. Must not be used while the
+	 * active color is in check.
+	 */
+	public void moveNull() {
+		if (isCheck()) {
+			throw new IllegalStateException("Null move made while in check");
+		}
+
+		ensureHistoryCapacity(stateIndex + 1);
+		castlingHistory[stateIndex] = this.castlingPermissions;
+		enPassantHistory[stateIndex] = this.enPassantPosition;
+		halfMoveHistory[stateIndex] = this.halfMoveClock;
+		capturedHistory[stateIndex] = ChessPiece.NULL_PIECE;
+		keyHistory[stateIndex] = this.key.getKey();
+		checkersHistory[stateIndex] = this.checkers;
+		stateIndex++;
+		if (network != null) {
+			pushAccumulator();
+		}
+
+		// The other color just moved legally, so it is not in check either
+		this.checkers = 0L;
+
+		if (this.enPassantPosition != Position.NULL_POSITION) {
+			key.toggleEnPassantSquare(this.enPassantPosition);
+			this.enPassantPosition = Position.NULL_POSITION;
+		}
+
+		if (this.activeColor == ChessColor.BLACK.value()) {
+			this.fullMoveClock++;
+		}
+
+		this.activeColor = ChessColor.opposite(activeColor);
+		key.toggleActiveColor();
+		this.halfMoveClock = 0;
+	}
+
+	/**
+	 * Undo the effect of a null move made with moveNull
+	 */
+	public void unmoveNull() {
+		this.activeColor = ChessColor.opposite(activeColor);
+		if (this.activeColor == ChessColor.BLACK.value()) {
+			this.fullMoveClock--;
+		}
+		stateIndex--;
+		if (network != null && stateIndex < accumulatorBase) {
+			// No piece moved, so the accumulator after the null move is correct
+			int size = 2 * network.getHiddenSize();
+			System.arraycopy(accumulators, (stateIndex + 1) * size, accumulators,
+					stateIndex * size, size);
+			accumulatorBase = stateIndex;
+		}
+
+		this.castlingPermissions = castlingHistory[stateIndex];
+		this.enPassantPosition = enPassantHistory[stateIndex];
+		this.halfMoveClock = halfMoveHistory[stateIndex];
+		this.key.setKey(keyHistory[stateIndex]);
+		this.checkers = checkersHistory[stateIndex];
+	}
+
 	/**
 	 * Undo the effect of the given serialized Move
 	 * 
@@ -908,7 +1357,19 @@ public class ChessBoard {
 			int moveType, int promotionType) {
 		this.activeColor = ChessColor.opposite(activeColor);
 		if (this.activeColor == ChessColor.BLACK.value()) {
-			this.fullMoveClock++;
+			this.fullMoveClock--;
+		}
+		stateIndex--;
+		if (network != null) {
+			if (stateIndex < accumulatorBase) {
+				// Rebuilt from the position after the move by the updates below
+				int size = 2 * network.getHiddenSize();
+				System.arraycopy(accumulators, (stateIndex + 1) * size, accumulators,
+						stateIndex * size, size);
+				accumulatorBase = stateIndex;
+			} else {
+				updateAccumulator = false;
+			}
 		}
 
 		if (moveType == Move.Flags.CASTLE.value()) {
@@ -940,20 +1401,34 @@ public class ChessBoard {
 		clear(endPos);
 		set(startPos, startPiece);
 
-		if (endPiece != ChessPiece.NULL_PIECE) {
+		int captured = capturedHistory[stateIndex];
+		if (captured != ChessPiece.NULL_PIECE) {
 			int effectiveCapturePos = endPos;
 			if (moveType == Move.Flags.EN_PASSANT.value()) {
 				effectiveCapturePos +=
 						(startColor == ChessColor.WHITE.value() ? Position.S : Position.N);
 			}
-			set(effectiveCapturePos, endPiece);
+			set(effectiveCapturePos, captured);
+		}
+
+		this.castlingPermissions = castlingHistory[stateIndex];
+		this.enPassantPosition = enPassantHistory[stateIndex];
+		this.halfMoveClock = halfMoveHistory[stateIndex];
+		this.key.setKey(keyHistory[stateIndex]);
+		this.checkers = checkersHistory[stateIndex];
+		this.updateAccumulator = true;
+	}
+
+	// Starts the accumulator of the new position as a copy of the previous one
+	private void pushAccumulator() {
+		int size = 2 * network.getHiddenSize();
+		if ((stateIndex + 1) * size > accumulators.length) {
+			accumulators = Arrays.copyOf(accumulators,
+					Math.max((stateIndex + 1) * size, accumulators.length * 2));
 		}
 
-		State saved = savedStates[--stateIndex];
-		this.castlingPermissions = saved.castlingPermissions;
-		this.enPassantPosition = saved.enPassantPosition;
-		this.halfMoveClock = saved.halfMoveClock;
-		this.key.setKey(saved.zobristKey);
+		System.arraycopy(accumulators, (stateIndex - 1) * size, accumulators, stateIndex * size,
+				size);
 	}
 
 	private void updateCastlingPerm(int position) {
@@ -1077,19 +1552,19 @@ public class ChessBoard {
 
 			int castlingPermissions = CastlingBitFlags.NO_CASTLING;
 			EnumSet<CastlingBitFlags> flags = EnumSet.noneOf(CastlingBitFlags.class);
-			if (majorComponents[2].matches("K")) {
+			if (majorComponents[2].contains("K")) {
 				flags.add(CastlingBitFlags.WHITE_KINGSIDE);
 				position.key.toggleCastlingRights(CastlingBitFlags.WHITE_KINGSIDE.value());
 			}
-			if (majorComponents[2].matches("Q")) {
+			if (majorComponents[2].contains("Q")) {
 				flags.add(CastlingBitFlags.WHITE_QUEENSIDE);
 				position.key.toggleCastlingRights(CastlingBitFlags.WHITE_QUEENSIDE.value());
 			}
-			if (majorComponents[2].matches("k")) {
+			if (majorComponents[2].contains("k")) {
 				flags.add(CastlingBitFlags.BLACK_KINGSIDE);
 				position.key.toggleCastlingRights(CastlingBitFlags.BLACK_KINGSIDE.value());
 			}
-			if (majorComponents[2].matches("q")) {
+			if (majorComponents[2].contains("q")) {
 				flags.add(CastlingBitFlags.BLACK_QUEENSIDE);
 				position.key.toggleCastlingRights(CastlingBitFlags.BLACK_QUEENSIDE.value());
 			}
@@ -1115,6 +1590,24 @@ public class ChessBoard {
 			return position;
 		}
 
+		/**
+		 * Returns a ChessBoard with the given pieces and active color, without
+		 * any castling rights or en passant square
+		 * 
+		 * @param pieces
+		 *            the bitboard value of every piece, indexed by the
+		 *            serialized piece
+		 * @param activeColor
+		 *            the color to move
+		 * @return a ChessBoard with the given pieces and active color
+		 */
+		public static ChessBoard fromBitboards(long[] pieces, int activeColor) {
+			ChessBoard position = new ChessBoard();
+			position.load(pieces, activeColor);
+
+			return position;
+		}
+
 		public static void main(String[] args) {
 			ChessBoard position =
 					ChessBoard.ChessBoardFactory.fromFEN("8/6p1/8/8/8/8/1Q6/8 w - - 0 1");
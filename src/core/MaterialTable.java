@@ -0,0 +1,270 @@
+package core;
+
+/**
+ * Precomputed information about the material of a position, looked up by the
+ * number of pieces of each type that each color has. An entry packs the game
+ * phase, the material imbalance bonus, whether neither side can mate and the
+ * factor each color's advantage is scaled by. The table covers every position
+ * with at most two knights, bishops and rooks and one queen per color, entries
+ * for other material are computed when they are first asked for and kept in a
+ * small cache.
+ * 
+ * @author declan
+ *
+ */
+public final class MaterialTable {
+
+	/**
+	 * The scale factor of an advantage that is not scaled down, scale factors
+	 * are fractions of this value
+	 */
+	public static final int SCALE_NORMAL = 64;
+
+	/**
+	 * The number of different table indices, one for every combination of
+	 * material counts in the table
+	 */
+	public static final int SIZE;
+
+	// The largest count of each piece type that the table covers, kings are
+	// not counted
+	private static final int[] limits = { 8, 2, 2, 2, 1 };
+	private static final int NUM_COUNTED = limits.length;
+
+	private static final int[][] strides = new int[2][NUM_COUNTED];
+
+	// A material key holds each count in a five bit field. Adding the bias
+	// sets the top bit of a field exactly when its count is above the limit.
+	private static final int FIELD_BITS = 5;
+	private static final long[][] keyIncrements = new long[2][NUM_COUNTED];
+	private static final long LIMIT_BIAS;
+	private static final long LIMIT_GUARD;
+
+	// Layout of an entry, the imbalance is signed and kept in the top bits
+	private static final int PHASE_MASK = 0x3F;
+	private static final int DRAW_SHIFT = 6;
+	private static final int WHITE_SCALE_SHIFT = 7;
+	private static final int BLACK_SCALE_SHIFT = 14;
+	private static final int SCALE_MASK = 0x7F;
+	private static final int IMBALANCE_SHIFT = 21;
+
+	private static final int BISHOP_PAIR = 40;
+	// Knights gain and rooks lose value for each pawn above five of their side
+	private static final int KNIGHT_PAWN_ADJUSTMENT = 6;
+	private static final int ROOK_PAWN_ADJUSTMENT = -12;
+
+	private static final int[] table;
+
+	// Entries for material the table does not cover, each slot holds the pair
+	// (key ^ entry, entry) so that a slot torn by a concurrent write does not
+	// match its key
+	private static final int CACHE_BITS = 12;
+	private static final long[] cacheChecks = new long[1 << CACHE_BITS];
+	private static final long[] cacheEntries = new long[1 << CACHE_BITS];
+
+	static {
+		int stride = 1;
+		long bias = 0L;
+		long guard = 0L;
+		for (int color = 0; color < 2; color++) {
+			for (int type = 0; type < NUM_COUNTED; type++) {
+				int shift = (color * NUM_COUNTED + type) * FIELD_BITS;
+				strides[color][type] = stride;
+				stride *= limits[type] + 1;
+				keyIncrements[color][type] = 1L << shift;
+				bias |= (long) ((1 << (FIELD_BITS - 1)) - 1 - limits[type]) << shift;
+				guard |= 1L << (shift + FIELD_BITS - 1);
+			}
+		}
+		SIZE = stride;
+		LIMIT_BIAS = bias;
+		LIMIT_GUARD = guard;
+
+		table = new int[SIZE];
+		for (int index = 0; index < SIZE; index++) {
+			int rest = index;
+			long key = 0L;
+			for (int i = 0; i < 2 * NUM_COUNTED; i++) {
+				key |= (long) (rest % (limits[i % NUM_COUNTED] + 1)) << (i * FIELD_BITS);
+				rest /= limits[i % NUM_COUNTED] + 1;
+			}
+			table[index] = compute(key);
+		}
+	}
+
+	/**
+	 * Returns the amount a piece of the given color and type adds to a table
+	 * index, so that an index can be kept up to date as pieces are added and
+	 * removed. Kings add nothing.
+	 * 
+	 * @param color
+	 *            the color of the piece
+	 * @param type
+	 *            the type of the piece
+	 * @return the amount the piece adds to a table index
+	 */
+	public static int getStride(int color, int type) {
+		return type < NUM_COUNTED ? strides[color][type] : 0;
+	}
+
+	/**
+	 * Returns the amount a piece of the given color and type adds to a
+	 * material key. Kings add nothing.
+	 * 
+	 * @param color
+	 *            the color of the piece
+	 * @param type
+	 *            the type of the piece
+	 * @return the amount the piece adds to a material key
+	 */
+	public static long getKeyIncrement(int color, int type) {
+		return type < NUM_COUNTED ? keyIncrements[color][type] : 0L;
+	}
+
+	/**
+	 * Returns the entry for the given material. The entry is read from the
+	 * table if the material is covered by it, and from the cache otherwise.
+	 * 
+	 * @param materialKey
+	 *            the packed counts of the material, white pawns in the lowest
+	 *            five bits
+	 * @param index
+	 *            the table index of the material, only used if the table
+	 *            covers the material
+	 * @return the packed entry for the material
+	 */
+	public static int get(long materialKey, int index) {
+		if (((materialKey + LIMIT_BIAS) & LIMIT_GUARD) == 0L) {
+			return table[index];
+		}
+
+		int slot = (int) ((materialKey * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - CACHE_BITS));
+		long entry = cacheEntries[slot];
+		if ((cacheChecks[slot] ^ entry) == materialKey) {
+			return (int) entry;
+		}
+
+		entry = compute(materialKey);
+		cacheChecks[slot] = materialKey ^ entry;
+		cacheEntries[slot] = entry;
+		return (int) entry;
+	}
+
+	/**
+	 * Returns the game phase stored in the given entry
+	 * 
+	 * @param entry
+	 *            the packed entry
+	 * @return the game phase of the material
+	 */
+	public static int getPhase(int entry) {
+		return entry & PHASE_MASK;
+	}
+
+	/**
+	 * Returns true if neither color has enough material to checkmate
+	 * 
+	 * @param entry
+	 *            the packed entry
+	 * @return true if neither color has enough material to checkmate
+	 */
+	public static boolean isDraw(int entry) {
+		return ((entry >>> DRAW_SHIFT) & 1) != 0;
+	}
+
+	/**
+	 * Returns the factor an advantage of the given color should be scaled by,
+	 * as a fraction of SCALE_NORMAL
+	 * 
+	 * @param entry
+	 *            the packed entry
+	 * @param color
+	 *            the color with the advantage
+	 * @return the scale factor of the advantage
+	 */
+	public static int getScale(int entry, int color) {
+		return (entry >>> (color == ChessColor.WHITE.value() ? WHITE_SCALE_SHIFT
+				: BLACK_SCALE_SHIFT)) & SCALE_MASK;
+	}
+
+	/**
+	 * Returns the material imbalance bonus from white's point of view
+	 * 
+	 * @param entry
+	 *            the packed entry
+	 * @return the material imbalance bonus from white's point of view
+	 */
+	public static int getImbalance(int entry) {
+		return entry >> IMBALANCE_SHIFT;
+	}
+
+	// The count of the given type for the side, which is color * NUM_COUNTED
+	private static int count(long key, int side, int type) {
+		return (int) (key >>> ((side + type) * FIELD_BITS)) & ((1 << FIELD_BITS) - 1);
+	}
+
+	private static int compute(long key) {
+		int white = ChessColor.WHITE.value() * NUM_COUNTED;
+		int black = ChessColor.BLACK.value() * NUM_COUNTED;
+
+		int phase = 0;
+		for (int type = 0; type < NUM_COUNTED; type++) {
+			phase += PieceSquareTable.phase(type)
+					* (count(key, white, type) + count(key, black, type));
+		}
+
+		boolean draw = isBare(key, white) && isBare(key, black);
+		int imbalance = imbalance(key, white) - imbalance(key, black);
+
+		return Math.min(phase, PHASE_MASK) | (draw ? 1 << DRAW_SHIFT : 0)
+				| (scale(key, white, black) << WHITE_SCALE_SHIFT)
+				| (scale(key, black, white) << BLACK_SCALE_SHIFT)
+				| (imbalance << IMBALANCE_SHIFT);
+	}
+
+	// No pawns, rooks or queens and at most one minor piece
+	private static boolean isBare(long key, int side) {
+		return count(key, side, PieceType.PAWN.value()) == 0
+				&& count(key, side, PieceType.ROOK.value()) == 0
+				&& count(key, side, PieceType.QUEEN.value()) == 0
+				&& count(key, side, PieceType.KNIGHT.value())
+						+ count(key, side, PieceType.BISHOP.value()) <= 1;
+	}
+
+	private static int imbalance(long key, int side) {
+		int pawns = count(key, side, PieceType.PAWN.value()) - 5;
+		return (count(key, side, PieceType.BISHOP.value()) >= 2 ? BISHOP_PAIR : 0)
+				+ KNIGHT_PAWN_ADJUSTMENT * pawns * count(key, side, PieceType.KNIGHT.value())
+				+ ROOK_PAWN_ADJUSTMENT * pawns * count(key, side, PieceType.ROOK.value());
+	}
+
+	// Without pawns an advantage of at most a minor piece is hard or
+	// impossible to convert
+	private static int scale(long key, int strong, int weak) {
+		int strongPieces = pieceMaterial(key, strong);
+		int weakPieces = pieceMaterial(key, weak);
+		if (count(key, strong, PieceType.PAWN.value()) == 0
+				&& strongPieces - weakPieces <= PieceType.BISHOP.score()) {
+			if (strongPieces < PieceType.ROOK.score()) {
+				return 0;
+			}
+
+			return weakPieces <= PieceType.BISHOP.score() ? 4 : 14;
+		}
+
+		return SCALE_NORMAL;
+	}
+
+	private static int pieceMaterial(long key, int side) {
+		int material = 0;
+		for (int type = PieceType.KNIGHT.value(); type < NUM_COUNTED; type++) {
+			material += PieceType.getScore(type) * count(key, side, type);
+		}
+
+		return material;
+	}
+
+	private MaterialTable() {
+	}
+
+}
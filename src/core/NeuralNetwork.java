@@ -0,0 +1,235 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An efficiently updatable neural network evaluation. The first layer has one
+ * input for every piece type of every color on every square, seen from the
+ * point of view of both colors, and its output is kept by ChessBoard as an
+ * accumulator that is updated as pieces are set and cleared. Evaluating a
+ * position then only needs the small output layer, which reads the clipped
+ * accumulator of the side to move followed by that of the other side.
+ * 
+ * Weights are loaded from a little endian binary file holding the magic
+ * number, the version and the hidden layer size as ints, followed by the first
+ * layer weights, the first layer biases and the output weights as shorts, and
+ * the output bias as an int.
+ * 
+ * @author declan
+ *
+ */
+public class NeuralNetwork {
+
+	/**
+	 * The number of inputs of the first layer seen from one color
+	 */
+	public static final int INPUTS = 2 * 6 * 64;
+
+	/**
+	 * The first int of a network file, "NNUE" in ASCII
+	 */
+	public static final int MAGIC = 0x4E4E5545;
+
+	/**
+	 * The version of the network file format
+	 */
+	public static final int VERSION = 1;
+
+	// Quantization of the first layer outputs, the output weights, and the
+	// scale of the output in centipawns
+	private static final int QA = 255;
+	private static final int QB = 64;
+	private static final int SCALE = 400;
+
+	private final int hiddenSize;
+	private final short[] featureWeights; // Indexed by feature * hiddenSize + i
+	private final short[] featureBiases;
+	private final short[] outputWeights; // Side to move first, then the other
+	private final int outputBias;
+
+	/**
+	 * Constructs a NeuralNetwork with the given weights
+	 * 
+	 * @param hiddenSize
+	 *            the number of outputs of the first layer
+	 * @param featureWeights
+	 *            the first layer weights, INPUTS rows of hiddenSize weights
+	 * @param featureBiases
+	 *            the hiddenSize first layer biases
+	 * @param outputWeights
+	 *            the 2 * hiddenSize output weights
+	 * @param outputBias
+	 *            the output bias
+	 */
+	public NeuralNetwork(int hiddenSize, short[] featureWeights, short[] featureBiases,
+			short[] outputWeights, int outputBias) {
+		if (hiddenSize < 1) {
+			throw new IllegalArgumentException("Hidden size value is not valid");
+		} else if (featureWeights.length != INPUTS * hiddenSize
+				|| featureBiases.length != hiddenSize || outputWeights.length != 2 * hiddenSize) {
+			throw new IllegalArgumentException("Weight count is not valid");
+		}
+
+		this.hiddenSize = hiddenSize;
+		this.featureWeights = featureWeights;
+		this.featureBiases = featureBiases;
+		this.outputWeights = outputWeights;
+		this.outputBias = outputBias;
+	}
+
+	/**
+	 * Loads a NeuralNetwork from the given file by mapping it into memory
+	 * 
+	 * @param file
+	 *            the network file to load
+	 * @return the NeuralNetwork stored in the file
+	 * @throws IOException
+	 *             if the file can not be read or is not a network file
+	 */
+	public static NeuralNetwork load(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+				throw new IOException("File is not a network file");
+			} else if (buffer.getInt() != VERSION) {
+				throw new IOException("Network file version is not supported");
+			}
+
+			int hiddenSize = buffer.getInt();
+			long expected = 2L * ((long) (INPUTS + 3) * hiddenSize) + 4;
+			if (hiddenSize < 1 || buffer.remaining() != expected) {
+				throw new IOException("Network file size is not valid");
+			}
+
+			short[] featureWeights = new short[INPUTS * hiddenSize];
+			short[] featureBiases = new short[hiddenSize];
+			short[] outputWeights = new short[2 * hiddenSize];
+
+			ShortBuffer shorts = buffer.asShortBuffer();
+			shorts.get(featureWeights).get(featureBiases).get(outputWeights);
+			buffer.position(buffer.position() + 2 * shorts.position());
+
+			return new NeuralNetwork(hiddenSize, featureWeights, featureBiases, outputWeights,
+					buffer.getInt());
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the number of outputs of the first layer. An accumulator holds
+	 * twice this many values, one half for each color.
+	 * 
+	 * @return the number of outputs of the first layer
+	 */
+	public int getHiddenSize() {
+		return hiddenSize;
+	}
+
+	/**
+	 * Sets the accumulator at the given offset to the first layer output of
+	 * an empty board
+	 * 
+	 * @param accumulator
+	 *            the array holding the accumulator
+	 * @param offset
+	 *            the index of the first value of the accumulator
+	 */
+	public void reset(short[] accumulator, int offset) {
+		System.arraycopy(featureBiases, 0, accumulator, offset, hiddenSize);
+		System.arraycopy(featureBiases, 0, accumulator, offset + hiddenSize, hiddenSize);
+	}
+
+	/**
+	 * Updates the accumulator at the given offset for the given piece being
+	 * added to the square with the given bit index
+	 * 
+	 * @param accumulator
+	 *            the array holding the accumulator
+	 * @param offset
+	 *            the index of the first value of the accumulator
+	 * @param piece
+	 *            the serialized piece
+	 * @param square
+	 *            the bit index of the square
+	 */
+	public void add(short[] accumulator, int offset, int piece, int square) {
+		update(accumulator, offset, feature(piece, square, ChessColor.WHITE.value()), 1);
+		update(accumulator, offset + hiddenSize,
+				feature(piece, square, ChessColor.BLACK.value()), 1);
+	}
+
+	/**
+	 * Updates the accumulator at the given offset for the given piece being
+	 * removed from the square with the given bit index
+	 * 
+	 * @param accumulator
+	 *            the array holding the accumulator
+	 * @param offset
+	 *            the index of the first value of the accumulator
+	 * @param piece
+	 *            the serialized piece
+	 * @param square
+	 *            the bit index of the square
+	 */
+	public void remove(short[] accumulator, int offset, int piece, int square) {
+		update(accumulator, offset, feature(piece, square, ChessColor.WHITE.value()), -1);
+		update(accumulator, offset + hiddenSize,
+				feature(piece, square, ChessColor.BLACK.value()), -1);
+	}
+
+	/**
+	 * Evaluates the position whose accumulator is at the given offset from the
+	 * point of view of the given color
+	 * 
+	 * @param accumulator
+	 *            the array holding the accumulator
+	 * @param offset
+	 *            the index of the first value of the accumulator
+	 * @param color
+	 *            the color to move
+	 * @return the evaluation in centipawns from the point of view of the color
+	 */
+	public int evaluate(short[] accumulator, int offset, int color) {
+		int friend = offset + (color == ChessColor.WHITE.value() ? 0 : hiddenSize);
+		int enemy = offset + (color == ChessColor.WHITE.value() ? hiddenSize : 0);
+
+		long sum = 0;
+		for (int i = 0; i < hiddenSize; i++) {
+			sum += clip(accumulator[friend + i]) * outputWeights[i];
+			sum += clip(accumulator[enemy + i]) * outputWeights[hiddenSize + i];
+		}
+
+		return (int) ((sum + outputBias) * SCALE / (QA * QB));
+	}
+
+	private void update(short[] accumulator, int offset, int feature, int sign) {
+		int row = feature * hiddenSize;
+		for (int i = 0; i < hiddenSize; i++) {
+			accumulator[offset + i] += sign * featureWeights[row + i];
+		}
+	}
+
+	private static int clip(int value) {
+		return Math.min(Math.max(value, 0), QA);
+	}
+
+	// The input index of the piece on the square as seen by the given color,
+	// black sees the board flipped and its own pieces first
+	private static int feature(int piece, int square, int perspective) {
+		int side = ChessPiece.getColor(piece) == perspective ? 0 : 1;
+		int relative = perspective == ChessColor.WHITE.value() ? square : square ^ 56;
+		return (side * 6 + ChessPiece.getPieceType(piece)) * 64 + relative;
+	}
+
+}
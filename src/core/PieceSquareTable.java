@@ -0,0 +1,177 @@
+package core;
+
+/**
+ * Piece-square tables for the middlegame and the endgame, along with the
+ * weights used to find the game phase of a position. The bonus of a piece
+ * depends on its type and the square it stands on, and is given from the point
+ * of view of the color of the piece. ChessBoard keeps the sums of these values
+ * up to date as pieces are set and cleared, and blends the middlegame and
+ * endgame sums by the game phase when evaluating.
+ * 
+ * @author declan
+ *
+ */
+public final class PieceSquareTable {
+
+	/**
+	 * The game phase of a position with all of its pieces, any larger phase is
+	 * treated as this value
+	 */
+	public static final int MAX_PHASE = 24;
+
+	private static final int[] phaseWeights = { 0, 1, 1, 2, 4, 0 };
+
+	// The tables below are laid out as seen from white's side of the board,
+	// the first row is the eighth rank and the last row is the first rank.
+
+	private static final int[] pawnMiddlegame = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		 50,  50,  50,  50,  50,  50,  50,  50,
+		 10,  10,  20,  30,  30,  20,  10,  10,
+		  5,   5,  10,  25,  25,  10,   5,   5,
+		  0,   0,   0,  20,  20,   0,   0,   0,
+		  5,  -5, -10,   0,   0, -10,  -5,   5,
+		  5,  10,  10, -20, -20,  10,  10,   5,
+		  0,   0,   0,   0,   0,   0,   0,   0 };
+
+	private static final int[] pawnEndgame = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		 80,  80,  80,  80,  80,  80,  80,  80,
+		 50,  50,  50,  50,  50,  50,  50,  50,
+		 30,  30,  30,  30,  30,  30,  30,  30,
+		 20,  20,  20,  20,  20,  20,  20,  20,
+		 10,  10,  10,  10,  10,  10,  10,  10,
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		  0,   0,   0,   0,   0,   0,   0,   0 };
+
+	private static final int[] knight = {
+		-50, -40, -30, -30, -30, -30, -40, -50,
+		-40, -20,   0,   0,   0,   0, -20, -40,
+		-30,   0,  10,  15,  15,  10,   0, -30,
+		-30,   5,  15,  20,  20,  15,   5, -30,
+		-30,   0,  15,  20,  20,  15,   0, -30,
+		-30,   5,  10,  15,  15,  10,   5, -30,
+		-40, -20,   0,   5,   5,   0, -20, -40,
+		-50, -40, -30, -30, -30, -30, -40, -50 };
+
+	private static final int[] bishop = {
+		-20, -10, -10, -10, -10, -10, -10, -20,
+		-10,   0,   0,   0,   0,   0,   0, -10,
+		-10,   0,   5,  10,  10,   5,   0, -10,
+		-10,   5,   5,  10,  10,   5,   5, -10,
+		-10,   0,  10,  10,  10,  10,   0, -10,
+		-10,  10,  10,  10,  10,  10,  10, -10,
+		-10,   5,   0,   0,   0,   0,   5, -10,
+		-20, -10, -10, -10, -10, -10, -10, -20 };
+
+	private static final int[] rook = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		  5,  10,  10,  10,  10,  10,  10,   5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		  0,   0,   0,   5,   5,   0,   0,   0 };
+
+	private static final int[] queen = {
+		-20, -10, -10,  -5,  -5, -10, -10, -20,
+		-10,   0,   0,   0,   0,   0,   0, -10,
+		-10,   0,   5,   5,   5,   5,   0, -10,
+		 -5,   0,   5,   5,   5,   5,   0,  -5,
+		  0,   0,   5,   5,   5,   5,   0,  -5,
+		-10,   5,   5,   5,   5,   5,   0, -10,
+		-10,   0,   5,   0,   0,   0,   0, -10,
+		-20, -10, -10,  -5,  -5, -10, -10, -20 };
+
+	private static final int[] kingMiddlegame = {
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-20, -30, -30, -40, -40, -30, -30, -20,
+		-10, -20, -20, -20, -20, -20, -20, -10,
+		 20,  20,   0,   0,   0,   0,  20,  20,
+		 20,  30,  10,   0,   0,  10,  30,  20 };
+
+	private static final int[] kingEndgame = {
+		-50, -40, -30, -20, -20, -30, -40, -50,
+		-30, -20, -10,   0,   0, -10, -20, -30,
+		-30, -10,  20,  30,  30,  20, -10, -30,
+		-30, -10,  30,  40,  40,  30, -10, -30,
+		-30, -10,  30,  40,  40,  30, -10, -30,
+		-30, -10,  20,  30,  30,  20, -10, -30,
+		-30, -30,   0,   0,   0,   0, -30, -30,
+		-50, -30, -30, -30, -30, -30, -30, -50 };
+
+	private static final int[][] middlegame =
+			{ pawnMiddlegame, knight, bishop, rook, queen, kingMiddlegame };
+	private static final int[][] endgame =
+			{ pawnEndgame, knight, bishop, rook, queen, kingEndgame };
+
+	/**
+	 * Returns the middlegame bonus of the given piece standing on the square
+	 * with the given bit index
+	 * 
+	 * @param piece
+	 *            the serialized piece
+	 * @param square
+	 *            the bit index of the square
+	 * @return the middlegame bonus of the piece on the square
+	 */
+	public static int middlegame(int piece, int square) {
+		return middlegame[ChessPiece.getPieceType(piece)][index(piece, square)];
+	}
+
+	/**
+	 * Returns the endgame bonus of the given piece standing on the square with
+	 * the given bit index
+	 * 
+	 * @param piece
+	 *            the serialized piece
+	 * @param square
+	 *            the bit index of the square
+	 * @return the endgame bonus of the piece on the square
+	 */
+	public static int endgame(int piece, int square) {
+		return endgame[ChessPiece.getPieceType(piece)][index(piece, square)];
+	}
+
+	/**
+	 * Returns the amount a piece of the given type adds to the game phase of a
+	 * position, pawns and kings add nothing
+	 * 
+	 * @param type
+	 *            the serialized piece type
+	 * @return the amount a piece of the type adds to the game phase
+	 */
+	public static int phase(int type) {
+		return phaseWeights[type];
+	}
+
+	/**
+	 * Blends the given middlegame and endgame scores by the given game phase
+	 * 
+	 * @param middlegame
+	 *            the middlegame score
+	 * @param endgame
+	 *            the endgame score
+	 * @param phase
+	 *            the game phase, MAX_PHASE for a full board and zero for bare
+	 *            kings and pawns
+	 * @return the score between the middlegame and endgame score
+	 */
+	public static int taper(int middlegame, int endgame, int phase) {
+		int weight = Math.min(phase, MAX_PHASE);
+		return (middlegame * weight + endgame * (MAX_PHASE - weight)) / MAX_PHASE;
+	}
+
+	// The tables are drawn with the eighth rank first, so white flips the rank
+	private static int index(int piece, int square) {
+		return ChessPiece.getColor(piece) == ChessColor.WHITE.value() ? square ^ 56 : square;
+	}
+
+	private PieceSquareTable() {
+	}
+
+}
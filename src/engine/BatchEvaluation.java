@@ -0,0 +1,296 @@
+package engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.ChessBoard;
+import core.ChessColor;
+import core.ChessPiece;
+import core.PieceType;
+
+/**
+ * Evaluates a large number of positions at once, for scoring and tuning on
+ * sets of positions. The positions are packed as a structure of arrays, with
+ * one array of bitboards for every piece and one array of active colors, and
+ * the batch is split between all cores using a fork join pool. Each position
+ * is given the same score as the static evaluation of the search. Every pool
+ * thread loads the packed positions into a board and evaluation of its own,
+ * so evaluating a batch does not allocate per position.
+ * 
+ * @author declan
+ *
+ */
+public class BatchEvaluation {
+
+	// The number of positions a task evaluates without splitting further
+	private static final int TASK_SIZE = 1024;
+
+	// The number of positions read by the command line before evaluating them
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+
+	};
+
+	private final long[][] pieces; // Indexed by serialized piece then position
+	private final int[] activeColors;
+	private int size;
+
+	/**
+	 * Constructs an empty BatchEvaluation that holds at most the given number
+	 * of positions
+	 * 
+	 * @param capacity
+	 *            the maximum number of positions in the batch
+	 */
+	public BatchEvaluation(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity value is not valid");
+		}
+
+		this.pieces = new long[ChessPiece.values().length][capacity];
+		this.activeColors = new int[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the number of positions in the batch
+	 * 
+	 * @return the number of positions in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if no more positions can be added to the batch
+	 * 
+	 * @return true if no more positions can be added to the batch
+	 */
+	public boolean isFull() {
+		return size == activeColors.length;
+	}
+
+	/**
+	 * Removes all positions from the batch
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds the pieces and active color of the given position to the end of
+	 * the batch
+	 * 
+	 * @param position
+	 *            the position to add
+	 */
+	public void add(ChessBoard position) {
+		if (isFull()) {
+			throw new IllegalStateException("Batch is full");
+		}
+
+		pack(size, position);
+		size++;
+	}
+
+	/**
+	 * Evaluates every position in the batch in parallel, storing the score of
+	 * each position from the point of view of its active color at the same
+	 * index of the given array
+	 * 
+	 * @param scores
+	 *            the array to store the scores in, at least as long as the
+	 *            batch
+	 */
+	public void evaluate(int[] scores) {
+		if (scores.length < size) {
+			throw new IllegalArgumentException("Score array is too short");
+		}
+
+		pool.invoke(new EvaluationTask(scores, 0, size));
+	}
+
+	private void copy(int from, int to) {
+		for (int piece = 0; piece < pieces.length; piece++) {
+			pieces[piece][to] = pieces[piece][from];
+		}
+		activeColors[to] = activeColors[from];
+	}
+
+	// The board, evaluation and unpacked bitboards reused by one thread
+	private static class Scratch {
+
+		private final ChessBoard board = new ChessBoard();
+		private final Evaluation evaluation = new Evaluation();
+		private final long[] pieces = new long[ChessPiece.values().length];
+
+	}
+
+	private void pack(int index, ChessBoard position) {
+		for (ChessColor color : ChessColor.values()) {
+			for (PieceType type : PieceType.values()) {
+				pieces[ChessPiece.fromRaw(color.value(), type.value())][index] =
+						position.getPiecesValue(color.value(), type.value());
+			}
+		}
+		activeColors[index] = position.getActiveColor();
+	}
+
+	private class EvaluationTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] scores;
+		private final int start;
+		private final int end;
+
+		EvaluationTask(int[] scores, int start, int end) {
+			this.scores = scores;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > TASK_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new EvaluationTask(scores, start, middle),
+						new EvaluationTask(scores, middle, end));
+				return;
+			}
+
+			Scratch local = scratch.get();
+			for (int i = start; i < end; i++) {
+				for (int piece = 0; piece < local.pieces.length; piece++) {
+					local.pieces[piece] = pieces[piece][i];
+				}
+
+				local.board.load(local.pieces, activeColors[i]);
+				scores[i] = local.evaluation.evaluate(local.board);
+			}
+		}
+
+	}
+
+	// Parses positions in FEN notation into the same indices of the batch,
+	// keeping the error of every line that is not a valid position or blank
+	private static class ParseTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final BatchEvaluation batch;
+		private final String[] lines;
+		private final String[] errors;
+		private final int start;
+		private final int end;
+
+		ParseTask(BatchEvaluation batch, String[] lines, String[] errors, int start, int end) {
+			this.batch = batch;
+			this.lines = lines;
+			this.errors = errors;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > TASK_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new ParseTask(batch, lines, errors, start, middle),
+						new ParseTask(batch, lines, errors, middle, end));
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				if (lines[i].isEmpty()) {
+					errors[i] = "Blank line";
+					continue;
+				}
+
+				try {
+					batch.pack(i, ChessBoard.ChessBoardFactory.fromFEN(lines[i]));
+					errors[i] = null;
+				} catch (RuntimeException e) {
+					errors[i] = e.toString();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Reads one position in FEN notation per line from standard input and
+	 * writes the score of each position to standard output, one output line
+	 * for every input line. A blank line gives a blank line. A line that is
+	 * not a valid position gives the line "error", and the reason is reported
+	 * on standard error with its line number.
+	 */
+	public static void main(String[] args) throws IOException {
+		BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+		PrintWriter output = new PrintWriter(System.out);
+		BatchEvaluation batch = new BatchEvaluation(DEFAULT_CAPACITY);
+		String[] lines = new String[DEFAULT_CAPACITY];
+		long[] lineNumbers = new long[DEFAULT_CAPACITY];
+		String[] errors = new String[DEFAULT_CAPACITY];
+		int[] scores = new int[DEFAULT_CAPACITY];
+
+		int count = 0;
+		long lineNumber = 0;
+		String line;
+		while ((line = input.readLine()) != null) {
+			lineNumber++;
+			lines[count] = line.trim();
+			lineNumbers[count] = lineNumber;
+			count++;
+
+			if (count == lines.length) {
+				write(batch, lines, lineNumbers, errors, count, scores, output);
+				count = 0;
+			}
+		}
+		write(batch, lines, lineNumbers, errors, count, scores, output);
+
+		output.flush();
+	}
+
+	private static void write(BatchEvaluation batch, String[] lines, long[] lineNumbers,
+			String[] errors, int count, int[] scores, PrintWriter output) {
+		pool.invoke(new ParseTask(batch, lines, errors, 0, count));
+
+		// Positions that were parsed are moved together, so that the scores
+		// are in the order of their lines
+		batch.size = 0;
+		for (int i = 0; i < count; i++) {
+			if (errors[i] == null) {
+				batch.copy(i, batch.size++);
+			}
+		}
+
+		batch.evaluate(scores);
+		int score = 0;
+		for (int i = 0; i < count; i++) {
+			if (errors[i] == null) {
+				output.println(scores[score++]);
+			} else if (lines[i].isEmpty()) {
+				output.println();
+			} else {
+				output.println("error");
+				System.err.println("Invalid line " + lineNumbers[i] + ": " + errors[i]);
+			}
+		}
+		batch.clear();
+	}
+
+}
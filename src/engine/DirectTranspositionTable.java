@@ -0,0 +1,87 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A TranspositionTable stored in direct memory outside of the Java heap. Large
+ * tables then add nothing to garbage collection pauses. Since a single
+ * ByteBuffer is limited to 2^31 bytes, the table is split into pages, and the
+ * table can hold more than 2^31 entries.
+ * 
+ * Direct memory is limited separately from the heap. Unless the JVM is started
+ * with -XX:MaxDirectMemorySize, the limit is the maximum heap size, and a table
+ * larger than that fails with an OutOfMemoryError when it is constructed.
+ * 
+ * @author declan
+ *
+ */
+public class DirectTranspositionTable extends TranspositionTable {
+
+	private static final int BYTES_PER_LONG = Long.SIZE / Byte.SIZE;
+
+	// Each page holds 2^27 longs, one gigabyte
+	private static final int PAGE_SHIFT = 27;
+	private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+
+	private final ByteBuffer[] pages;
+
+	/**
+	 * Construct new DirectTranspositionTable using at most the given amount of
+	 * direct memory. The number of buckets is rounded down to a power of two.
+	 * 
+	 * @param megabytes
+	 *            the maximum size of the table in megabytes
+	 * @throws OutOfMemoryError
+	 *             if the table does not fit in the direct memory limit of the
+	 *             JVM, set by -XX:MaxDirectMemorySize
+	 */
+	public DirectTranspositionTable(int megabytes) {
+		super(getBucketCount(megabytes), false);
+
+		long length = size() * LONGS_PER_BUCKET;
+		int pageCount = (int) ((length + PAGE_MASK) >>> PAGE_SHIFT);
+
+		this.pages = new ByteBuffer[pageCount];
+		for (int i = 0; i < pageCount; i++) {
+			long pageLength = Math.min(length - ((long) i << PAGE_SHIFT), PAGE_MASK + 1);
+			pages[i] = ByteBuffer.allocateDirect((int) (pageLength * BYTES_PER_LONG))
+					.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see engine.TranspositionTable#read(long)
+	 */
+	@Override
+	long read(long index) {
+		return pages[(int) (index >>> PAGE_SHIFT)]
+				.getLong((int) (index & PAGE_MASK) * BYTES_PER_LONG);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see engine.TranspositionTable#write(long, long)
+	 */
+	@Override
+	void write(long index, long value) {
+		pages[(int) (index >>> PAGE_SHIFT)].putLong((int) (index & PAGE_MASK) * BYTES_PER_LONG,
+				value);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see engine.TranspositionTable#fill(long, long)
+	 */
+	@Override
+	void fill(long fromIndex, long toIndex) {
+		for (long i = fromIndex; i < toIndex; i++) {
+			write(i, NULL_ENTRY);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package engine;
+
+/**
+ * A small direct mapped hash table of static evaluations indexed by the
+ * ZobristKey of a position. Each entry is a single long holding the upper bits
+ * of the key and the evaluation in the low bits, so a lookup is one read and a
+ * torn or overwritten entry is never mistaken for a hit.
+ * 
+ * @author declan
+ *
+ */
+public class EvalHashTable {
+
+	/**
+	 * The value returned by a probe that found no evaluation for the given key
+	 */
+	public static final int NULL_EVAL = Short.MIN_VALUE;
+
+	private static final long EVAL_MASK = 0xFFFFL;
+
+	private final long[] table;
+	private final int KEY_MASK;
+
+	/**
+	 * Construct a new EvalHashTable using at most the given amount of memory.
+	 * The number of entries is rounded down to a power of two.
+	 * 
+	 * @param megabytes
+	 *            the maximum size of the table in megabytes
+	 */
+	public EvalHashTable(int megabytes) {
+		if (megabytes < 1 || megabytes > 1024) {
+			throw new IllegalArgumentException("Size value is not valid");
+		}
+
+		int entries = Integer.highestOneBit((megabytes << 20) / (Long.SIZE / Byte.SIZE));
+		this.table = new long[entries];
+		this.KEY_MASK = entries - 1;
+	}
+
+	/**
+	 * Returns the evaluation stored for the given key value, or NULL_EVAL if
+	 * there is none
+	 * 
+	 * @param key
+	 *            the key value to perform the lookup with
+	 * @return the evaluation stored for the given key value, or NULL_EVAL
+	 */
+	public int probe(long key) {
+		long entry = table[(int) key & KEY_MASK];
+		if (((entry ^ key) & ~EVAL_MASK) != 0L || entry == 0L) {
+			return NULL_EVAL;
+		}
+
+		return (short) (entry & EVAL_MASK);
+	}
+
+	/**
+	 * Stores the evaluation for the given key value, replacing whatever was
+	 * stored in its slot
+	 * 
+	 * @param key
+	 *            the key value to store the evaluation at
+	 * @param eval
+	 *            the evaluation of the position
+	 */
+	public void store(long key, int eval) {
+		if (!(Short.MIN_VALUE < eval && eval <= Short.MAX_VALUE)) {
+			throw new IllegalArgumentException("Evaluation value is not valid");
+		}
+
+		table[(int) key & KEY_MASK] = (key & ~EVAL_MASK) | (eval & EVAL_MASK);
+	}
+
+	/**
+	 * Removes all entries from the table
+	 */
+	public void clear() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0L;
+		}
+	}
+
+}
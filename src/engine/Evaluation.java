@@ -0,0 +1,134 @@
+package engine;
+
+import core.ChessBoard;
+import core.ChessColor;
+import core.MaterialTable;
+import core.NeuralNetwork;
+
+/**
+ * The static evaluation used by the search. It adds the cached pawn structure
+ * terms and the material imbalance to ChessBoard.evaluate and scales down an
+ * advantage that can not be converted, or uses the neural network instead if
+ * one is set. Evaluations are cached in an evaluation hash table. An
+ * Evaluation is not thread safe, every thread should have its own.
+ * 
+ * @author declan
+ *
+ */
+public class Evaluation {
+
+	// Size of the pawn and evaluation hash tables in megabytes
+	private static final int PAWN_TABLE_SIZE = 1;
+	private static final int EVAL_TABLE_SIZE = 1;
+
+	// A window wider than any evaluation, evaluations are stored in 16 bits
+	private static final int INFINITY = Short.MAX_VALUE;
+
+	// Network evaluations are kept clear of the checkmate scores of the search
+	private static final int MAX_EVAL = 10000;
+
+	private final PawnHashTable pawnTable;
+	private final EvalHashTable evalTable;
+	private NeuralNetwork network;
+
+	/**
+	 * Constructs a new Evaluation with empty hash tables and no neural network
+	 */
+	public Evaluation() {
+		this.pawnTable = new PawnHashTable(PAWN_TABLE_SIZE);
+		this.evalTable = new EvalHashTable(EVAL_TABLE_SIZE);
+		this.network = null;
+	}
+
+	/**
+	 * Sets the neural network that evaluates positions in place of the hand
+	 * written evaluation, or goes back to the hand written evaluation if the
+	 * network is null. Evaluations made with the previous evaluation are
+	 * cleared. A position is only evaluated by the network if the network is
+	 * also set on the position.
+	 * 
+	 * @param network
+	 *            the network to evaluate positions with, or null
+	 */
+	public void setNetwork(NeuralNetwork network) {
+		this.network = network;
+		evalTable.clear();
+	}
+
+	/**
+	 * Returns the neural network that evaluates positions, or null if the hand
+	 * written evaluation is used
+	 * 
+	 * @return the neural network that evaluates positions, or null
+	 */
+	public NeuralNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Returns the static evaluation of the given position from the point of
+	 * view of the side to move
+	 * 
+	 * @param position
+	 *            the position to evaluate
+	 * @return the static evaluation of the position
+	 */
+	public int evaluate(ChessBoard position) {
+		return evaluate(position, -INFINITY, INFINITY);
+	}
+
+	/**
+	 * Returns the static evaluation of the given position from the point of
+	 * view of the side to move. The mobility terms are skipped when the
+	 * material score alone is outside the given window, such a lazy score is
+	 * not stored.
+	 * 
+	 * @param position
+	 *            the position to evaluate
+	 * @param alpha
+	 *            the lower bound of the search window
+	 * @param beta
+	 *            the upper bound of the search window
+	 * @return the static evaluation of the position, possibly without the
+	 *         mobility terms if it is outside the window
+	 */
+	public int evaluate(ChessBoard position, int alpha, int beta) {
+		long key = position.getZobristKey().getKey();
+		int eval = evalTable.probe(key);
+		if (eval != EvalHashTable.NULL_EVAL) {
+			return eval;
+		}
+
+		if (network != null) {
+			eval = Math.max(-MAX_EVAL, Math.min(MAX_EVAL, position.evaluateNetwork()));
+			evalTable.store(key, eval);
+			return eval;
+		}
+
+		int material = position.getMaterialEntry();
+		int white = pawnTable.evaluate(position) + MaterialTable.getImbalance(material);
+
+		int color = position.getActiveColor();
+		int extra = color == ChessColor.WHITE.value() ? white : -white;
+
+		// A scaled score is not bounded by its material score
+		if (MaterialTable.getScale(material, ChessColor.WHITE.value()) != MaterialTable.SCALE_NORMAL
+				|| MaterialTable.getScale(material,
+						ChessColor.BLACK.value()) != MaterialTable.SCALE_NORMAL) {
+			alpha = -INFINITY;
+			beta = INFINITY;
+		}
+
+		int score = position.evaluate(alpha - extra, beta - extra) + extra;
+		int strong = score > 0 ? color : ChessColor.opposite(color);
+		score = score * MaterialTable.getScale(material, strong) / MaterialTable.SCALE_NORMAL;
+
+		// Only a score this far inside the window is known to include mobility
+		if (alpha - ChessBoard.LAZY_MARGIN < score && score < beta) {
+			evalTable.store(key, score);
+		}
+
+		return score;
+	}
+
+}
@@ -0,0 +1,137 @@
+package engine;
+
+/**
+ * A fixed size buffer of serialized moves, each with an ordering score. The
+ * buffer is meant to be allocated once and reused for every node at the same
+ * ply, so that neither generating nor ordering moves creates any garbage.
+ * 
+ * @author declan
+ *
+ */
+public class MoveBuffer {
+
+	/**
+	 * The maximum number of moves a buffer can hold, no legal chess position
+	 * has more than 218 moves
+	 */
+	public static final int MAX_MOVES = 256;
+
+	private final int[] moves;
+	private final int[] scores;
+	private int size;
+	private int next;
+
+	/**
+	 * Constructs an empty MoveBuffer
+	 */
+	public MoveBuffer() {
+		this.moves = new int[MAX_MOVES];
+		this.scores = new int[MAX_MOVES];
+		this.size = 0;
+		this.next = 0;
+	}
+
+	/**
+	 * Removes all moves from the buffer
+	 */
+	public void clear() {
+		size = 0;
+		next = 0;
+	}
+
+	/**
+	 * Appends the given serialized move to the buffer with a score of zero
+	 * 
+	 * @param move
+	 *            the move to add
+	 */
+	public void add(int move) {
+		moves[size] = move;
+		scores[size] = 0;
+		size++;
+	}
+
+	/**
+	 * Removes the move at the given index by moving the last move in its place
+	 * 
+	 * @param index
+	 *            the index of the move to remove
+	 */
+	public void remove(int index) {
+		if (index < 0 || index >= size) {
+			throw new IllegalArgumentException("Index value is not valid");
+		}
+
+		size--;
+		moves[index] = moves[size];
+		scores[index] = scores[size];
+	}
+
+	/**
+	 * Returns the number of moves in the buffer
+	 * 
+	 * @return the number of moves in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the move at the given index
+	 * 
+	 * @param index
+	 *            the index of the move
+	 * @return the move at the given index
+	 */
+	public int get(int index) {
+		return moves[index];
+	}
+
+	/**
+	 * Sets the ordering score of the move at the given index
+	 * 
+	 * @param index
+	 *            the index of the move
+	 * @param score
+	 *            the score of the move, higher scores are picked first
+	 */
+	public void setScore(int index, int score) {
+		scores[index] = score;
+	}
+
+	/**
+	 * Returns true if there are moves that have not been picked yet
+	 * 
+	 * @return true if there are moves that have not been picked yet
+	 */
+	public boolean hasNext() {
+		return next < size;
+	}
+
+	/**
+	 * Returns the remaining move with the highest score. This is one step of a
+	 * selection sort done in place, so a node that is cut off early never pays
+	 * for sorting the moves it does not search.
+	 * 
+	 * @return the remaining move with the highest score
+	 */
+	public int next() {
+		int best = next;
+		for (int i = next + 1; i < size; i++) {
+			if (scores[i] > scores[best]) {
+				best = i;
+			}
+		}
+
+		int move = moves[best];
+		int score = scores[best];
+		moves[best] = moves[next];
+		scores[best] = scores[next];
+		moves[next] = move;
+		scores[next] = score;
+		next++;
+
+		return move;
+	}
+
+}
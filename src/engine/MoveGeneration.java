@@ -1,10 +1,9 @@
 package engine;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 
+import core.Attacks;
 import core.Bitboard;
 import core.CastlingBitFlags;
 import core.ChessBoard;
@@ -66,6 +65,21 @@ public class MoveGeneration {
 
 	private static final Bitboard[][] castlingEmptyMask = new Bitboard[2][2];
 
+	// Sets of promotion piece types, indexed by the serialized PieceType
+	private static final int QUEEN_PROMOTION = 1 << PieceType.QUEEN.value();
+	private static final int ALL_PROMOTIONS = (1 << PieceType.KNIGHT.value())
+			| (1 << PieceType.BISHOP.value()) | (1 << PieceType.ROOK.value()) | QUEEN_PROMOTION;
+	private static final int UNDER_PROMOTIONS = ALL_PROMOTIONS & ~QUEEN_PROMOTION;
+	private static final int[] promotionTypes = { PieceType.KNIGHT.value(),
+			PieceType.BISHOP.value(), PieceType.ROOK.value(), PieceType.QUEEN.value() };
+
+	private static final long RANK_1 = Position.Rank.R_1.board().value();
+	private static final long RANK_4 = Position.Rank.R_4.board().value();
+	private static final long RANK_5 = Position.Rank.R_5.board().value();
+	private static final long RANK_8 = Position.Rank.R_8.board().value();
+	private static final long FILE_A = Position.File.F_A.board().value();
+	private static final long FILE_H = Position.File.F_H.board().value();
+
 	static {
 		castlingEmptyMask[CastlingBitFlags.WHITE_QUEENSIDE.color()][CastlingBitFlags.WHITE_QUEENSIDE
 				.side()] = Bitboard.from(0xeL);
@@ -90,241 +104,435 @@ public class MoveGeneration {
 	 *         whether or not the search is quiescent
 	 */
 	public static ArrayList<Integer> getMoves(ChessBoard position, boolean quiescent) {
-		boolean isCheck = position.isCheck();
-		ArrayList<Integer> moves = getMoves(position);
+		MoveBuffer buffer = new MoveBuffer();
+		getMoves(position, quiescent, buffer);
 
-		if (!quiescent) {
-			if (!isCheck) {
-				getCastlingMoves(moves, position);
-			}
+		ArrayList<Integer> moves = new ArrayList<Integer>(buffer.size());
+		for (int i = 0; i < buffer.size(); i++) {
+			moves.add(buffer.get(i));
+		}
+
+		return moves;
+	}
+
+	/**
+	 * Fills the given MoveBuffer with all legal moves for the given position,
+	 * taking into account whether or not the search is quiescent. A quiescent
+	 * search only gets the moves from getCaptures. Any moves already in the
+	 * buffer are removed.
+	 * 
+	 * @param position
+	 *            the position to generate the moves for
+	 * @param quiescent
+	 *            flag telling the move generation whether or not to ignore
+	 *            certain moves
+	 * @param moves
+	 *            the buffer to fill with moves
+	 */
+	public static void getMoves(ChessBoard position, boolean quiescent, MoveBuffer moves) {
+		moves.clear();
+		if (quiescent) {
+			getCaptures(position, moves);
 		} else {
-			// If quiescent remove all moves that don't capture
-			Iterator<Integer> iter = moves.iterator();
-			Integer move = null;
-			while (iter.hasNext()) {
-				move = iter.next();
-				if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE) {
-					iter.remove();
-				}
+			getLegalMoves(position, ~0L, ~0L, ALL_PROMOTIONS, moves);
+		}
+	}
+
+	/**
+	 * Adds the legal moves that end on one of the given target squares to the
+	 * given MoveBuffer. An en passant capture counts as a move onto the square
+	 * of the captured pawn.
+	 * 
+	 * @param position
+	 *            the position to generate the moves for
+	 * @param targets
+	 *            the squares, as raw Bitboard value, the moves have to end on
+	 * @param moves
+	 *            the buffer to add the moves to
+	 */
+	public static void getMoves(ChessBoard position, long targets, MoveBuffer moves) {
+		getLegalMoves(position, targets, targets, ALL_PROMOTIONS, moves);
+	}
+
+	/**
+	 * Adds the legal moves that capture a piece to the given MoveBuffer, along
+	 * with the non capturing promotions to a queen. These are the moves
+	 * searched by a quiescent search.
+	 * 
+	 * @param position
+	 *            the position to generate the moves for
+	 * @param moves
+	 *            the buffer to add the moves to
+	 */
+	public static void getCaptures(ChessBoard position, MoveBuffer moves) {
+		int color = position.getActiveColor();
+		long promotionRank = (color == ChessColor.WHITE.value())
+				? Position.Rank.R_8.board().value() : Position.Rank.R_1.board().value();
+
+		getLegalMoves(position, position.getOccupancyValue(ChessColor.opposite(color)),
+				promotionRank, QUEEN_PROMOTION, moves);
+	}
+
+	/**
+	 * Adds the legal moves that do not capture a piece to the given
+	 * MoveBuffer, including castling and under promotions. Together with
+	 * getCaptures this gives every legal move exactly once.
+	 * 
+	 * @param position
+	 *            the position to generate the moves for
+	 * @param moves
+	 *            the buffer to add the moves to
+	 */
+	public static void getQuiets(ChessBoard position, MoveBuffer moves) {
+		getLegalMoves(position, ~position.getOccupancyValue(ChessBoard.BOTH_COLOR), ~0L,
+				UNDER_PROMOTIONS, moves);
+	}
+
+	/**
+	 * Adds the legal moves out of check to the given MoveBuffer. The moves
+	 * are limited to king moves and the moves that capture or block the
+	 * checking piece, so nothing else is generated.
+	 * 
+	 * @param position
+	 *            the position to generate the moves for, with the active color
+	 *            in check
+	 * @param moves
+	 *            the buffer to add the moves to
+	 */
+	public static void getEvasions(ChessBoard position, MoveBuffer moves) {
+		if (!position.isCheck()) {
+			throw new IllegalStateException("Active color is not in check");
+		}
+
+		getLegalMoves(position, ~0L, ~0L, ALL_PROMOTIONS, moves);
+	}
+
+	/**
+	 * Returns true if the given serialized move is legal in the given
+	 * position. Used to check moves that did not come from the move
+	 * generation, like hash and killer moves.
+	 * 
+	 * @param position
+	 *            the position to check the move in
+	 * @param move
+	 *            the move to check
+	 * @param scratch
+	 *            a buffer that is overwritten while checking
+	 * @return true if the given serialized move is legal in the given position
+	 */
+	static boolean isLegal(ChessBoard position, int move, MoveBuffer scratch) {
+		if (move == Move.NULL_MOVE || !Move.isValid(move)) {
+			return false;
+		}
+
+		int startPiece = Move.getStartPiece(move);
+		if (position.get(Move.getStartPosition(move)) != startPiece
+				|| ChessPiece.getColor(startPiece) != position.getActiveColor()) {
+			return false;
+		}
+
+		// Only the moves onto the same square are generated, then searched for
+		// an exact match
+		int targetPos = Move.getEndPosition(move);
+		if (Move.getFlags(move) == Move.Flags.EN_PASSANT.value()) {
+			targetPos += (position.getActiveColor() == ChessColor.WHITE.value()) ? Position.S
+					: Position.N;
+		}
+
+		long target = 1L << Position.getBitIndex(targetPos);
+		scratch.clear();
+		getLegalMoves(position, target, target, ALL_PROMOTIONS, scratch);
+		for (int i = 0; i < scratch.size(); i++) {
+			if (scratch.get(i) == move) {
+				return true;
 			}
 		}
 
-		return moves;
+		return false;
 	}
 
-	private static ArrayList<Integer> getMoves(ChessBoard position) {
-		ArrayList<Integer> moves = new ArrayList<Integer>();
+	// Only legal moves are produced, so none of them needs to be made and
+	// unmade to test for check. The checkers and pinned pieces are found once,
+	// and every piece is then restricted to the squares that block or capture a
+	// single checker and to the line of its pin. Only moves onto the given
+	// targets are added, en passant counts as a move onto the captured pawn.
+	// Pawn pushes have their own targets, and only the given promotion types
+	// are generated for the pushes that promote.
+	private static void getLegalMoves(ChessBoard position, long targets, long pushTargets,
+			int pushPromotions, MoveBuffer moves) {
+		int color = position.getActiveColor();
+		long occupied = position.getOccupancyValue(ChessBoard.BOTH_COLOR);
+		long kings = position.getPiecesValue(color, PieceType.KING.value());
+
+		long checkers = 0L;
+		long pinned = 0L;
+		int king = Long.numberOfTrailingZeros(kings);
+		if (kings != 0L) {
+			checkers = position.getCheckers();
+			pinned = getPinned(position, king);
+
+			getKingMoves(moves, king, position, targets);
+		}
+
+		// In double check only the king can move
+		if (Long.bitCount(checkers) > 1) {
+			return;
+		}
 
-		// Get queen moves
-		for (Integer pos : position.getPieces(position.getActiveColor(), PieceType.QUEEN.value())) {
-			getMovesSliding(moves, pos, queenDirections, position);
+		long evasions = ~0L;
+		if (checkers != 0L) {
+			evasions = Attacks.between(king, Long.numberOfTrailingZeros(checkers)) | checkers;
 		}
 
-		// Get king moves
-		for (Integer pos : position.getPieces(position.getActiveColor(), PieceType.KING.value())) {
-			getMovesNonSliding(moves, pos, kingOffsets, position);
+		// Get queen moves
+		for (long queens = position.getPiecesValue(color, PieceType.QUEEN.value()); queens != 0;
+				queens &= queens - 1) {
+			int square = Long.numberOfTrailingZeros(queens);
+			int pos = Position.getPosition(square);
+			getMovesFromAttacks(moves, pos, Attacks.queen(square, occupied) & targets
+					& getLegalMask(square, king, pinned, evasions), position);
 		}
 
 		// Get rook moves
-		for (Integer pos : position.getPieces(position.getActiveColor(), PieceType.ROOK.value())) {
-			getMovesSliding(moves, pos, rookDirections, position);
+		for (long rooks = position.getPiecesValue(color, PieceType.ROOK.value()); rooks != 0;
+				rooks &= rooks - 1) {
+			int square = Long.numberOfTrailingZeros(rooks);
+			int pos = Position.getPosition(square);
+			getMovesFromAttacks(moves, pos, Attacks.rook(square, occupied) & targets
+					& getLegalMask(square, king, pinned, evasions), position);
 		}
 
 		// Get bishop moves
-		for (Integer pos : position.getPieces(position.getActiveColor(),
-				PieceType.BISHOP.value())) {
-			getMovesSliding(moves, pos, bishopDirections, position);
+		for (long bishops = position.getPiecesValue(color, PieceType.BISHOP.value()); bishops != 0;
+				bishops &= bishops - 1) {
+			int square = Long.numberOfTrailingZeros(bishops);
+			int pos = Position.getPosition(square);
+			getMovesFromAttacks(moves, pos, Attacks.bishop(square, occupied) & targets
+					& getLegalMask(square, king, pinned, evasions), position);
 		}
 
-		// Get knight moves
-
-		for (Integer pos : position.getPieces(position.getActiveColor(),
-				PieceType.KNIGHT.value())) {
-			getMovesNonSliding(moves, pos, knightOffsets, position);
+		// Get knight moves, a pinned knight can never move
+		for (long knights = position.getPiecesValue(color, PieceType.KNIGHT.value()); knights != 0;
+				knights &= knights - 1) {
+			int square = Long.numberOfTrailingZeros(knights);
+			int pos = Position.getPosition(square);
+			if ((pinned & (1L << square)) == 0) {
+				getMovesFromAttacks(moves, pos, Attacks.knight(square) & targets & evasions,
+						position);
+			}
 		}
 
 		// Get pawn moves
-		for (Integer pos : position.getPieces(position.getActiveColor(), PieceType.PAWN.value())) {
-			getPawnMoves(moves, pos, position);
-		}
+		getPawnMoves(moves, position, king, pinned, evasions & targets, evasions & pushTargets,
+				pushPromotions);
 
-		return moves;
+		if (kings != 0L && checkers == 0L) {
+			getCastlingMoves(moves, position, targets);
+		}
 	}
 
-	private static void getMovesSliding(Collection<Integer> moves, int startPos, int[] directions,
-			ChessBoard position) {
-		int startPiece = position.get(startPos);
-		for (int direction : directions) {
-			int endPos = startPos + direction;
-			while (Position.isValid(endPos)) {
-				int endPiece = position.get(endPos);
-				if (ChessPiece.NULL_PIECE == endPiece) {
-					int flags = Move.Flags.QUIET.value();
-					int move = Move.value(startPiece, endPiece, startPos, endPos, flags,
-							PieceType.NULL_PROMOTION);
-					addMove(moves, position, move);
-				} else if (ChessPiece.getColor(endPiece) != ChessPiece.getColor(startPiece)) {
-					int flags = Move.Flags.CAPTURE.value();
-					int move = Move.value(startPiece, endPiece, startPos, endPos, flags,
-							PieceType.NULL_PROMOTION);
-					addMove(moves, position, move);
-
-					break;
-				} else {
-					break;
-				}
-				endPos += direction;
+	// The pieces of the active color that are the only blocker between their
+	// king and an enemy slider
+	private static long getPinned(ChessBoard position, int king) {
+		int color = position.getActiveColor();
+		int enemy = ChessColor.opposite(color);
+		long occupied = position.getOccupancyValue(ChessBoard.BOTH_COLOR);
+		long friends = position.getOccupancyValue(color);
+		long queens = position.getPiecesValue(enemy, PieceType.QUEEN.value());
+
+		// Enemy sliders that would attack the king if none of our pieces
+		// were in the way
+		long snipers = (Attacks.rook(king, occupied & ~friends)
+				& (position.getPiecesValue(enemy, PieceType.ROOK.value()) | queens))
+				| (Attacks.bishop(king, occupied & ~friends)
+						& (position.getPiecesValue(enemy, PieceType.BISHOP.value()) | queens));
+
+		long pinned = 0L;
+		while (snipers != 0) {
+			long blockers = Attacks.between(king, Long.numberOfTrailingZeros(snipers)) & occupied;
+			if (Long.bitCount(blockers) == 1) {
+				pinned |= blockers;
 			}
+
+			snipers &= snipers - 1;
 		}
+
+		return pinned;
 	}
 
-	private static void getMovesNonSliding(Collection<Integer> moves, int startPos, int[] offsets,
-			ChessBoard position) {
-		int startPiece = position.get(startPos);
-		for (int offset : offsets) {
-			int endPos = startPos + offset;
-			if (Position.isValid(endPos)) {
-				int endPiece = position.get(endPos);
-				if (ChessPiece.NULL_PIECE == endPiece) {
-					int flags = Move.Flags.QUIET.value();
-					int move = Move.value(startPiece, endPiece, startPos, endPos, flags,
-							PieceType.NULL_PROMOTION);
-					addMove(moves, position, move);
-				} else if (ChessPiece.getColor(endPiece) != ChessPiece.getColor(startPiece)) {
-					int flags = Move.Flags.CAPTURE.value();
-					int move = Move.value(startPiece, endPiece, startPos, endPos, flags,
-							PieceType.NULL_PROMOTION);
-					addMove(moves, position, move);
-				}
-			}
+	private static long getLegalMask(int square, int king, long pinned, long evasions) {
+		if ((pinned & (1L << square)) != 0) {
+			return evasions & Attacks.line(king, square);
 		}
+
+		return evasions;
 	}
 
-	private static void getPawnMoves(Collection<Integer> moves, int startPos,
-			final ChessBoard position) {
-
-		// The bitboard shifting techniques used below would be better used with
-		// whole populations of pawns, however I coded just as a place to store
-		// the code given the event of needing it again. Plus it's fairly
-		// efficient either way.
-		Bitboard pawnPosition = new Bitboard();
-		pawnPosition.set(startPos);
-
-		final Bitboard enemyOccPlusEnPass =
-				position.getOccupany(ChessColor.opposite(position.getActiveColor()));
-		if (position.getEnPassantPosition() != Position.NULL_POSITION)
-			enemyOccPlusEnPass.set(position.getEnPassantPosition());
-		Bitboard pawnAttacks = new Bitboard();
-		for (int i = 1; i < pawnOffsets[position.getActiveColor()].length; i++) {
-			int endPos = startPos + pawnOffsets[position.getActiveColor()][i];
-			if (Position.isValid(endPos) && position.get(endPos) != ChessPiece.NULL_PIECE) {
-				pawnAttacks.set(endPos);
+	private static void getKingMoves(MoveBuffer moves, int king, ChessBoard position,
+			long targets) {
+		int color = position.getActiveColor();
+		long kingBit = 1L << king;
+
+		// The king is removed from the occupancy so that it can not hide behind
+		// itself on the ray of a checking slider
+		long occupied = position.getOccupancyValue(ChessBoard.BOTH_COLOR) & ~kingBit;
+		long steps = Attacks.king(king) & ~position.getOccupancyValue(color) & targets;
+
+		long safe = 0L;
+		while (steps != 0) {
+			int target = Long.numberOfTrailingZeros(steps);
+			if (position.attackers(target, ChessColor.opposite(color), occupied) == 0L) {
+				safe |= 1L << target;
 			}
-		}
-		pawnAttacks = Bitboard.and(pawnAttacks, enemyOccPlusEnPass);
 
-		Bitboard pawnSingleMoves = pawnPosition.clone();
-		pawnSingleMoves.operate(new Bitboard.BitboardOperation() {
+			steps &= steps - 1;
+		}
 
-			@Override
-			public long operate(long board) {
-				if (position.getActiveColor() == ChessColor.WHITE.value()) {
-					board <<= 8;
-				} else {
-					board >>>= 8;
-				}
-				board &= ~position.getOccupany(ChessBoard.BOTH_COLOR).value();
-				return board;
-			}
+		getMovesFromAttacks(moves, Position.getPosition(king), safe, position);
+	}
 
-		});
-
-		Bitboard pawnDoubleMoves = pawnPosition.clone();
-		pawnDoubleMoves.operate(new Bitboard.BitboardOperation() {
-
-			@Override
-			public long operate(long board) {
-				long pawnHome = (position.getActiveColor() == ChessColor.WHITE.value())
-						? Position.Rank.R_2.board().value() : Position.Rank.R_7.board().value();
-				board &= pawnHome;
-				for (int i = 0; i < 2; i++) {
-					if (position.getActiveColor() == ChessColor.WHITE.value()) {
-						board <<= 8;
-					} else {
-						board >>>= 8;
-					}
-					board &= ~position.getOccupany(ChessBoard.BOTH_COLOR).value();
-				}
-				return board;
-			}
+	private static void getMovesFromAttacks(MoveBuffer moves, int startPos,
+			long attacks, ChessBoard position) {
+		int startPiece = position.get(startPos);
+		long targets = attacks
+				& ~position.getOccupancyValue(ChessPiece.getColor(startPiece));
+
+		while (targets != 0) {
+			int endPos = Position.getPosition(Long.numberOfTrailingZeros(targets));
+			int endPiece = position.get(endPos);
+			int flags = (endPiece == ChessPiece.NULL_PIECE) ? Move.Flags.QUIET.value()
+					: Move.Flags.CAPTURE.value();
+			moves.add(Move.value(startPiece, endPiece, startPos, endPos, flags,
+					PieceType.NULL_PROMOTION));
+
+			targets &= targets - 1;
+		}
+	}
 
-		});
+	// Every pawn of the active color is moved at once by shifting the whole
+	// population, the moves are then read off the target sets by bit scanning
+	private static void getPawnMoves(MoveBuffer moves, ChessBoard position, int king,
+			long pinned, long captureTargets, long pushTargets, int pushPromotions) {
+		int color = position.getActiveColor();
+		long pawns = position.getPiecesValue(color, PieceType.PAWN.value());
+		long empty = ~position.getOccupancyValue(ChessBoard.BOTH_COLOR);
+		long enemies = position.getOccupancyValue(ChessColor.opposite(color));
+
+		long singlePushes;
+		long doublePushes;
+		long westCaptures;
+		long eastCaptures;
+		int forward;
+		if (color == ChessColor.WHITE.value()) {
+			forward = 8;
+			singlePushes = (pawns << 8) & empty;
+			doublePushes = (singlePushes << 8) & empty & RANK_4;
+			westCaptures = (pawns & ~FILE_A) << 7;
+			eastCaptures = (pawns & ~FILE_H) << 9;
+		} else {
+			forward = -8;
+			singlePushes = (pawns >>> 8) & empty;
+			doublePushes = (singlePushes >>> 8) & empty & RANK_5;
+			westCaptures = (pawns & ~FILE_A) >>> 9;
+			eastCaptures = (pawns & ~FILE_H) >>> 7;
+		}
 
-		Bitboard promoteRank = (position.getActiveColor() == ChessColor.WHITE.value())
-				? Position.Rank.R_8.board().opposite() : Position.Rank.R_1.board().opposite();
+		addPawnMoves(moves, position, singlePushes & pushTargets, forward,
+				Move.Flags.QUIET.value(), pushPromotions, king, pinned);
+		addPawnMoves(moves, position, doublePushes & pushTargets, 2 * forward,
+				Move.Flags.DOUBLE_PAWN_PUSH.value(), pushPromotions, king, pinned);
+		addPawnMoves(moves, position, westCaptures & enemies & captureTargets, forward - 1,
+				Move.Flags.CAPTURE.value(), ALL_PROMOTIONS, king, pinned);
+		addPawnMoves(moves, position, eastCaptures & enemies & captureTargets, forward + 1,
+				Move.Flags.CAPTURE.value(), ALL_PROMOTIONS, king, pinned);
+
+		// The pawns that could capture en passant are the ones an enemy pawn on
+		// the en passant square would attack
+		int enPassantPos = position.getEnPassantPosition();
+		if (enPassantPos != Position.NULL_POSITION) {
+			int enPassant = Position.getBitIndex(enPassantPos);
+			int capturePos = Position.getPosition(enPassant - forward);
+			if ((captureTargets & (1L << (enPassant - forward))) != 0) {
+				long attackers = Attacks.pawn(ChessColor.opposite(color), enPassant) & pawns;
+				while (attackers != 0) {
+					int startPos = Position.getPosition(Long.numberOfTrailingZeros(attackers));
+					if (isLegalEnPassant(position, startPos, enPassantPos)) {
+						moves.add(Move.value(position.get(startPos), position.get(capturePos),
+								startPos, enPassantPos, Move.Flags.EN_PASSANT.value(),
+								PieceType.NULL_PROMOTION));
+					}
 
-		for (int endPos : pawnAttacks) {
-			int flags = Move.Flags.CAPTURE.value();
-			if (endPos == position.getEnPassantPosition()) {
-				flags = Move.Flags.EN_PASSANT.value();
+					attackers &= attackers - 1;
+				}
 			}
-
-			addPawnMoves(moves, startPos, position, promoteRank, flags, endPos);
 		}
+	}
 
-		for (int endPos : pawnSingleMoves) {
-			int flags = Move.Flags.QUIET.value();
-			addPawnMoves(moves, startPos, position, promoteRank, flags, endPos);
+	// En passant removes two pieces from the same rank at once, which the pin
+	// masks can't describe, so the king is tested against the occupancy after
+	// the capture directly
+	private static boolean isLegalEnPassant(ChessBoard position, int startPos, int endPos) {
+		int color = position.getActiveColor();
+		long kings = position.getPiecesValue(color, PieceType.KING.value());
+		if (kings == 0L) {
+			return true;
 		}
 
-		for (int endPos : pawnDoubleMoves) {
-			int flags = Move.Flags.DOUBLE_PAWN_PUSH.value();
-			addPawnMoves(moves, startPos, position, promoteRank, flags, endPos);
-		}
+		int capturePos =
+				endPos + (color == ChessColor.WHITE.value() ? Position.S : Position.N);
+		long captureBit = 1L << Position.getBitIndex(capturePos);
+		long occupied = (position.getOccupancyValue(ChessBoard.BOTH_COLOR)
+				& ~(1L << Position.getBitIndex(startPos)) & ~captureBit)
+				| (1L << Position.getBitIndex(endPos));
+
+		return (position.attackers(Long.numberOfTrailingZeros(kings),
+				ChessColor.opposite(color), occupied) & ~captureBit) == 0L;
 	}
 
-	private static void addPawnMoves(Collection<Integer> moves, int startPos,
-			final ChessBoard position, Bitboard toPromote, int flags, int endPos) {
-		if (!toPromote.check(endPos)) {
-			int endPosShift = 0;
-			if (flags == Move.Flags.EN_PASSANT.value()) {
-				endPosShift = (position.getActiveColor() == ChessColor.WHITE.value() ? Position.S
-						: Position.N);
+	// Adds a move for every pawn target, with the start square found by
+	// undoing the shift. A pinned pawn may only move along the line of its pin.
+	private static void addPawnMoves(MoveBuffer moves, ChessBoard position, long targets,
+			int shift, int flags, int promotions, int king, long pinned) {
+		while (targets != 0) {
+			int end = Long.numberOfTrailingZeros(targets);
+			int start = end - shift;
+			targets &= targets - 1;
+
+			if ((pinned & (1L << start)) != 0 && (Attacks.line(king, start) & (1L << end)) == 0) {
+				continue;
 			}
 
-			int move = Move.value(position.get(startPos), position.get(endPos + endPosShift),
-					startPos, endPos, flags, PieceType.NULL_PROMOTION);
-			addMove(moves, position, move);
-		} else {
-			flags = Move.Flags.PROMOTION.value();
-			int moveKnight = Move.value(position.get(startPos), position.get(endPos), startPos,
-					endPos, flags, PieceType.KNIGHT.value());
-			int moveBishop = Move.value(position.get(startPos), position.get(endPos), startPos,
-					endPos, flags, PieceType.BISHOP.value());
-			int moveRook = Move.value(position.get(startPos), position.get(endPos), startPos,
-					endPos, flags, PieceType.ROOK.value());
-			int moveQueen = Move.value(position.get(startPos), position.get(endPos), startPos,
-					endPos, flags, PieceType.QUEEN.value());
-
-			addMove(moves, position, moveKnight);
-			addMove(moves, position, moveBishop);
-			addMove(moves, position, moveRook);
-			addMove(moves, position, moveQueen);
+			int startPos = Position.getPosition(start);
+			int endPos = Position.getPosition(end);
+			int startPiece = position.get(startPos);
+			int endPiece = position.get(endPos);
+			if (((RANK_1 | RANK_8) & (1L << end)) == 0) {
+				moves.add(Move.value(startPiece, endPiece, startPos, endPos, flags,
+						PieceType.NULL_PROMOTION));
+			} else {
+				for (int type : promotionTypes) {
+					if ((promotions & (1 << type)) != 0) {
+						moves.add(Move.value(startPiece, endPiece, startPos, endPos,
+								Move.Flags.PROMOTION.value(), type));
+					}
+				}
+			}
 		}
 	}
 
-	private static void getCastlingMoves(Collection<Integer> moves, ChessBoard position) {
+	private static void getCastlingMoves(MoveBuffer moves, ChessBoard position, long targets) {
+		int enemy = ChessColor.opposite(position.getActiveColor());
 		for (CastlingBitFlags flag : CastlingBitFlags.from(position.getCastling())) {
 			if (flag.color() == position.getActiveColor()
+					&& (targets & (1L << Position.getBitIndex(flag.getEndPosition()))) != 0
 					&& position.isEmptyMask(castlingEmptyMask[flag.color()][flag.side()])
-					&& !position.isAttacked(flag.getMidPosition(),
-							ChessColor.opposite(position.getActiveColor()))) {
+					&& !position.isAttacked(flag.getMidPosition(), enemy)
+					&& !position.isAttacked(flag.getEndPosition(), enemy)) {
 				int kingPos = initialKingPos[position.getActiveColor()];
 				int kingPiece = position.get(kingPos);
-				int move = Move.value(kingPiece, ChessPiece.NULL_PIECE, kingPos,
-						flag.getEndPosition(), Move.Flags.CASTLE.value(), PieceType.NULL_PROMOTION);
-
-				addMove(moves, position, move);
+				moves.add(Move.value(kingPiece, ChessPiece.NULL_PIECE, kingPos,
+						flag.getEndPosition(), Move.Flags.CASTLE.value(),
+						PieceType.NULL_PROMOTION));
 			}
 		}
 	}
@@ -353,16 +561,4 @@ public class MoveGeneration {
 
 		return moveMap;
 	}
-
-	private static void addMove(Collection<Integer> moves, ChessBoard position, int move) {
-		int checkColor = ChessPiece.getColor(Move.getStartPiece(move));
-
-		position.move(move);
-		boolean isCheck = position.isCheck(checkColor);
-		position.unmove(move);
-
-		if (!isCheck) {
-			moves.add(move);
-		}
-	}
 }
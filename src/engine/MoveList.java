@@ -1,77 +1,68 @@
 package engine;
 
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
-import java.util.PriorityQueue;
-
 import core.ChessBoard;
 import core.ChessPiece;
 import core.Move;
-import engine.TranspositionTable.Transposition;
-import util.Pair;
 
 /**
- * A wrapper for the MoveGeneration that organizes moves into quiet and capture
- * moves and exposes an iterator for all the moves
+ * A wrapper for the MoveGeneration that orders the moves of a node and hands
+ * them out best first. A MoveList owns a MoveBuffer and is meant to be reused
+ * for every node at the same ply.
  * 
  * @author declan
  *
  */
-public class MoveList implements Iterable<Integer> {
-
-	private static Comparator<Pair<Integer, Integer>> moveComparator =
-			new Comparator<Pair<Integer, Integer>>() {
+public class MoveList {
 
-				@Override
-				public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2) {
-					return Integer.compare(o2.second(), o1.second());
-				}
+	private final MoveBuffer moves;
 
-			};
-
-	private Transposition pv;
-	private final PriorityQueue<Pair<Integer, Integer>> moves;
+	/**
+	 * Constructs an empty MoveList
+	 */
+	public MoveList() {
+		this.moves = new MoveBuffer();
+	}
 
 	/**
-	 * Constructs a MoveList with a given List of moves, a given position, and a
-	 * given transposition table
+	 * Replaces the contents of this MoveList with the ordered moves of the
+	 * given position
 	 * 
-	 * @param moves
-	 *            the moves to sort
 	 * @param position
-	 *            the position to evaluate against
+	 *            the position to generate and evaluate moves for
 	 * @param table
 	 *            the transposition table to search for PV
+	 * @param killerMoves
+	 *            the killer moves, indexed by ply
+	 * @param historyTable
+	 *            the history scores of quiet moves
+	 * @param ply
+	 *            the distance of the position from the root
+	 * @param quiescence
+	 *            whether or not the moves are for a quiescent search
 	 */
-	public MoveList(List<Integer> moves, ChessBoard position, TranspositionTable table,
-			int[][] killerMoves, int[][][] historyTable, int activeColor, int ply,
-			boolean quiescence) {
-		if (table.get(position.getZobristKey()) != null) {
-			this.pv = table.get(position.getZobristKey());
-			if (this.pv.key != position.getZobristKey().getKey()
-					|| this.pv.bestMove == Move.NULL_MOVE) {
-				this.pv = null;
-			}
-		}
-
-		this.moves = new PriorityQueue<Pair<Integer, Integer>>(moves.size() > 1 ? moves.size() : 1,
-				moveComparator);
-
-		for (Integer move : moves) {
-			if (pv != null && move == pv.bestMove && pv.bestMove != Move.NULL_MOVE) {
-				this.moves.add(new Pair<Integer, Integer>(move, Integer.MAX_VALUE));
+	public void generate(ChessBoard position, TranspositionTable table, int[][] killerMoves,
+			int[][][] historyTable, int ply, boolean quiescence) {
+		MoveGeneration.getMoves(position, quiescence, moves);
+
+		long entry = table.probe(position.getZobristKey().getKey());
+		int pv = (entry != TranspositionTable.NULL_ENTRY) ? TranspositionTable.getBestMove(entry)
+				: Move.NULL_MOVE;
+		int activeColor = position.getActiveColor();
+
+		// Walk backwards so that removing a move never skips another
+		for (int i = moves.size() - 1; i >= 0; i--) {
+			int move = moves.get(i);
+			if (pv != Move.NULL_MOVE && move == pv) {
+				moves.setScore(i, Integer.MAX_VALUE);
 			} else if (Move.getEndPiece(move) == ChessPiece.NULL_PIECE) {
 				int value = isKiller(killerMoves, ply, move) ? 100 : 0;
 				value += historyTable[activeColor][Move.getStartPosition(move)][Move
-						.getEndPiece(move)];
-				this.moves.add(new Pair<Integer, Integer>(move, value));
+						.getEndPosition(move)];
+				moves.setScore(i, value);
+			} else if (quiescence && !position.see(move, 0)) {
+				moves.remove(i);
 			} else {
-				int value = position.staticExchangeEvaluation(move);
-				if (!(quiescence && value < 0)) {
-					this.moves.add(new Pair<Integer, Integer>(move, value));
-				}
+				moves.setScore(i, position.staticExchangeEvaluation(move));
 			}
 		}
 	}
@@ -85,38 +76,31 @@ public class MoveList implements Iterable<Integer> {
 		return false;
 	}
 
+	/**
+	 * Returns the number of moves generated for the current position
+	 * 
+	 * @return the number of moves generated for the current position
+	 */
 	public int size() {
 		return moves.size();
 	}
 
-	@Override
-	public Iterator<Integer> iterator() {
-		return new MoveIterator(moves);
+	/**
+	 * Returns true if there are moves that have not been handed out yet
+	 * 
+	 * @return true if there are moves that have not been handed out yet
+	 */
+	public boolean hasNext() {
+		return moves.hasNext();
 	}
 
-	private class MoveIterator implements Iterator<Integer> {
-
-		private final Iterator<Pair<Integer, Integer>> iter;
-
-		public MoveIterator(Collection<Pair<Integer, Integer>> coll) {
-			this.iter = coll.iterator();
-		}
-
-		@Override
-		public boolean hasNext() {
-			return iter.hasNext();
-		}
-
-		@Override
-		public Integer next() {
-			return iter.next().first();
-		}
-
-		@Override
-		public void remove() {
-			throw new UnsupportedOperationException();
-		}
-
+	/**
+	 * Returns the best remaining move
+	 * 
+	 * @return the best remaining move
+	 */
+	public int next() {
+		return moves.next();
 	}
 
 }
@@ -0,0 +1,244 @@
+package engine;
+
+import core.ChessBoard;
+import core.ChessPiece;
+import core.Move;
+import core.PieceType;
+
+/**
+ * Hands out the moves of a node in stages, so that moves are only generated
+ * when the earlier stages did not produce a cutoff. The hash move is tried
+ * first, then captures that do not lose material and queen promotions ordered
+ * by MVV-LVA, then the killer moves, then quiet moves ordered by history, and
+ * finally the losing captures. When the side to move is in check every evasion is generated at
+ * once instead. A MovePicker is meant to be reused for every node at the same
+ * ply.
+ * 
+ * @author declan
+ *
+ */
+public class MovePicker {
+
+	private enum Stage {
+		TT_MOVE, GENERATE_CAPTURES, GOOD_CAPTURES, KILLERS, GENERATE_QUIETS, QUIETS,
+		BAD_CAPTURES, GENERATE_EVASIONS, EVASIONS, DONE
+	}
+
+	private final MoveBuffer captures;
+	private final MoveBuffer quiets;
+	private final MoveBuffer scratch;
+	private final int[] badCaptures;
+	private int badCaptureCount;
+	private int badCaptureIndex;
+
+	private Stage stage;
+	private boolean evasions;
+	private ChessBoard position;
+	private int ttMove;
+	private int[] killers;
+	private int killerIndex;
+	private int[][][] history;
+
+	/**
+	 * Constructs an empty MovePicker
+	 */
+	public MovePicker() {
+		this.captures = new MoveBuffer();
+		this.quiets = new MoveBuffer();
+		this.scratch = new MoveBuffer();
+		this.badCaptures = new int[MoveBuffer.MAX_MOVES];
+		this.stage = Stage.DONE;
+	}
+
+	/**
+	 * Prepares this MovePicker to hand out the moves of the given position. No
+	 * moves are generated until they are asked for.
+	 * 
+	 * @param position
+	 *            the position to pick moves for
+	 * @param ttMove
+	 *            the best move stored in the transposition table, or
+	 *            Move.NULL_MOVE
+	 * @param killers
+	 *            the killer moves of the ply of the position
+	 * @param history
+	 *            the history scores of quiet moves
+	 */
+	public void reset(ChessBoard position, int ttMove, int[] killers, int[][][] history) {
+		this.position = position;
+		this.ttMove = ttMove;
+		this.killers = killers;
+		this.history = history;
+		this.killerIndex = 0;
+		this.badCaptureCount = 0;
+		this.badCaptureIndex = 0;
+		this.captures.clear();
+		this.quiets.clear();
+		this.evasions = position.isCheck();
+		this.stage = evasions ? Stage.GENERATE_EVASIONS : Stage.TT_MOVE;
+	}
+
+	/**
+	 * Returns true if the side to move is in check and has exactly one legal
+	 * move. Only known after the first call to next.
+	 * 
+	 * @return true if the side to move is in check and has exactly one legal
+	 *         move
+	 */
+	public boolean isSingleEvasion() {
+		return evasions && quiets.size() == 1;
+	}
+
+	/**
+	 * Returns the next move to search, or Move.NULL_MOVE once every legal move
+	 * has been handed out
+	 * 
+	 * @return the next move to search, or Move.NULL_MOVE if there are none left
+	 */
+	public int next() {
+		while (true) {
+			switch (stage) {
+			case TT_MOVE:
+				stage = Stage.GENERATE_CAPTURES;
+				if (MoveGeneration.isLegal(position, ttMove, scratch)) {
+					return ttMove;
+				}
+				break;
+
+			case GENERATE_CAPTURES:
+				MoveGeneration.getCaptures(position, captures);
+				for (int i = 0; i < captures.size(); i++) {
+					captures.setScore(i, getCaptureScore(captures.get(i)));
+				}
+				stage = Stage.GOOD_CAPTURES;
+				break;
+
+			case GOOD_CAPTURES:
+				while (captures.hasNext()) {
+					int move = captures.next();
+					if (move == ttMove) {
+						continue;
+					} else if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE
+							&& !position.see(move, 0)) {
+						badCaptures[badCaptureCount++] = move;
+						continue;
+					}
+
+					return move;
+				}
+				stage = Stage.KILLERS;
+				break;
+
+			case KILLERS:
+				while (killerIndex < killers.length) {
+					int move = killers[killerIndex++];
+					if (move != ttMove && isKillerCandidate(move)
+							&& !isEarlierKiller(move, killerIndex - 1)
+							&& MoveGeneration.isLegal(position, move, scratch)) {
+						return move;
+					}
+				}
+				stage = Stage.GENERATE_QUIETS;
+				break;
+
+			case GENERATE_QUIETS:
+				MoveGeneration.getQuiets(position, quiets);
+				for (int i = 0; i < quiets.size(); i++) {
+					quiets.setScore(i, getQuietScore(quiets.get(i)));
+				}
+				stage = Stage.QUIETS;
+				break;
+
+			case QUIETS:
+				while (quiets.hasNext()) {
+					int move = quiets.next();
+					// Killers were already handed out by the killer stage
+					if (move != ttMove && !(isKillerCandidate(move)
+							&& isEarlierKiller(move, killers.length))) {
+						return move;
+					}
+				}
+				stage = Stage.BAD_CAPTURES;
+				break;
+
+			case BAD_CAPTURES:
+				if (badCaptureIndex < badCaptureCount) {
+					return badCaptures[badCaptureIndex++];
+				}
+				stage = Stage.DONE;
+				break;
+
+			case GENERATE_EVASIONS:
+				MoveGeneration.getEvasions(position, quiets);
+				for (int i = 0; i < quiets.size(); i++) {
+					int move = quiets.get(i);
+					if (move == ttMove) {
+						quiets.setScore(i, Integer.MAX_VALUE);
+					} else if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE
+							|| Move.getFlags(move) == Move.Flags.PROMOTION.value()) {
+						// Captures of the checking piece and promotions first
+						quiets.setScore(i, getCaptureScore(move) + (1 << 24));
+					} else {
+						quiets.setScore(i, getQuietScore(move));
+					}
+				}
+				stage = Stage.EVASIONS;
+				break;
+
+			case EVASIONS:
+				if (quiets.hasNext()) {
+					return quiets.next();
+				}
+				stage = Stage.DONE;
+				break;
+
+			case DONE:
+			default:
+				return Move.NULL_MOVE;
+			}
+		}
+	}
+
+	// Most valuable victim first, least valuable attacker breaks ties. A
+	// promotion counts the material it gains as part of the victim.
+	private int getCaptureScore(int move) {
+		int gain = 0;
+		if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE) {
+			gain += ChessPiece.getScore(Move.getEndPiece(move));
+		}
+		if (Move.getFlags(move) == Move.Flags.PROMOTION.value()) {
+			gain += PieceType.getScore(Move.getPromotionPieceType(move))
+					- PieceType.PAWN.score();
+		}
+
+		return gain * 8 - ChessPiece.getPieceType(Move.getStartPiece(move));
+	}
+
+	private int getQuietScore(int move) {
+		return history[position.getActiveColor()][Move.getStartPosition(move)][Move
+				.getEndPosition(move)];
+	}
+
+	/**
+	 * Returns true if the given move could be stored as a killer move, only
+	 * quiet moves that are not promotions are
+	 * 
+	 * @param move
+	 *            the move to check
+	 * @return true if the given move could be stored as a killer move
+	 */
+	public static boolean isKillerCandidate(int move) {
+		return Move.getEndPiece(move) == ChessPiece.NULL_PIECE
+				&& Move.getFlags(move) != Move.Flags.PROMOTION.value();
+	}
+
+	private boolean isEarlierKiller(int move, int index) {
+		for (int i = 0; i < index; i++) {
+			if (killers[i] == move) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,258 @@
+package engine;
+
+import core.ChessBoard;
+import core.ChessColor;
+import core.PieceSquareTable;
+import core.PieceType;
+
+/**
+ * A fixed size hash table indexed by the pawn Zobrist key of a position that
+ * caches the evaluation of its pawn structure. Doubled, isolated, backward and
+ * passed pawns only depend on where the pawns stand, and the same pawn
+ * structure is reached by a great many positions of a search tree, so these
+ * terms are computed once per structure. The passed pawns of both colors are
+ * kept as well, to score the terms that also depend on the other pieces. The
+ * pawn shield of each king is found on every call since it depends on the
+ * king position. A table is not thread safe, every search thread should have
+ * its own.
+ * 
+ * @author declan
+ *
+ */
+public class PawnHashTable {
+
+	// A key, a middlegame score, an endgame score and two passed pawn sets
+	private static final int BYTES_PER_ENTRY = 32;
+
+	private static final int DOUBLED_MIDDLEGAME = -10;
+	private static final int DOUBLED_ENDGAME = -20;
+	private static final int ISOLATED_MIDDLEGAME = -10;
+	private static final int ISOLATED_ENDGAME = -15;
+	private static final int BACKWARD_MIDDLEGAME = -8;
+	private static final int BACKWARD_ENDGAME = -10;
+
+	// Indexed by the rank of the pawn as seen from its own side
+	private static final int[] passedMiddlegame = { 0, 5, 10, 15, 25, 40, 60, 0 };
+	private static final int[] passedEndgame = { 0, 10, 20, 35, 60, 100, 150, 0 };
+	private static final int[] passedFreeEndgame = { 0, 0, 5, 10, 20, 35, 60, 0 };
+
+	private static final int SHIELD_NEAR = 10;
+	private static final int SHIELD_FAR = 5;
+
+	private static final long FILE_A = 0x0101010101010101L;
+	private static final long FILE_H = FILE_A << 7;
+
+	private static final int WHITE = ChessColor.WHITE.value();
+	private static final int BLACK = ChessColor.BLACK.value();
+
+	private static final long[] adjacentFiles = new long[8];
+	// Indexed by color then square, the squares in front of a pawn on its file
+	private static final long[][] forward = new long[2][64];
+	// The squares that enemy pawns must not be on for a pawn to be passed
+	private static final long[][] passedSpan = new long[2][64];
+	// The squares of friendly pawns that could still defend a pawn
+	private static final long[][] supportSpan = new long[2][64];
+	// The squares one and two ranks in front of a king that shelter it
+	private static final long[][] shieldNear = new long[2][64];
+	private static final long[][] shieldFar = new long[2][64];
+
+	static {
+		for (int file = 0; file < 8; file++) {
+			adjacentFiles[file] = (file > 0 ? FILE_A << (file - 1) : 0L)
+					| (file < 7 ? FILE_A << (file + 1) : 0L);
+		}
+
+		for (int square = 0; square < 64; square++) {
+			int file = square & 7;
+			int rank = square >>> 3;
+			long files = adjacentFiles[file] | (FILE_A << file);
+			for (int r = 0; r < 8; r++) {
+				long rankMask = 0xFFL << (r * 8);
+				int color = r > rank ? WHITE : BLACK;
+				if (r != rank) {
+					forward[color][square] |= rankMask & (FILE_A << file);
+					passedSpan[color][square] |= rankMask & files;
+				}
+				if (r <= rank) {
+					supportSpan[WHITE][square] |= rankMask & adjacentFiles[file];
+				}
+				if (r >= rank) {
+					supportSpan[BLACK][square] |= rankMask & adjacentFiles[file];
+				}
+				if (r == rank + 1) {
+					shieldNear[WHITE][square] |= rankMask & files;
+				} else if (r == rank + 2) {
+					shieldFar[WHITE][square] |= rankMask & files;
+				} else if (r == rank - 1) {
+					shieldNear[BLACK][square] |= rankMask & files;
+				} else if (r == rank - 2) {
+					shieldFar[BLACK][square] |= rankMask & files;
+				}
+			}
+		}
+	}
+
+	private final long[] keys;
+	private final int[] middlegame;
+	private final int[] endgame;
+	private final long[] passed; // Indexed by entry * 2 + color
+	private final int KEY_MASK;
+
+	/**
+	 * Construct a new PawnHashTable using at most the given amount of memory.
+	 * The number of entries is rounded down to a power of two.
+	 * 
+	 * @param megabytes
+	 *            the maximum size of the table in megabytes
+	 */
+	public PawnHashTable(int megabytes) {
+		if (megabytes < 1 || megabytes > 1024) {
+			throw new IllegalArgumentException("Size value is not valid");
+		}
+
+		int entries = Integer.highestOneBit((megabytes << 20) / BYTES_PER_ENTRY);
+		this.keys = new long[entries];
+		this.middlegame = new int[entries];
+		this.endgame = new int[entries];
+		this.passed = new long[entries * 2];
+		this.KEY_MASK = entries - 1;
+	}
+
+	/**
+	 * Returns the evaluation of the pawn structure and king shelter of the
+	 * given position from white's point of view, blended by the game phase of
+	 * the position
+	 * 
+	 * @param position
+	 *            the position to evaluate
+	 * @return the pawn evaluation of the position from white's point of view
+	 */
+	public int evaluate(ChessBoard position) {
+		int entry = probe(position);
+
+		int middle = middlegame[entry] + shield(position, WHITE) - shield(position, BLACK);
+		int end = endgame[entry] + freePassers(position, entry, WHITE)
+				- freePassers(position, entry, BLACK);
+
+		return PieceSquareTable.taper(middle, end, position.getPhase());
+	}
+
+	/**
+	 * Returns the passed pawns of the given color in the given position as a
+	 * bitboard value
+	 * 
+	 * @param position
+	 *            the position to find the passed pawns of
+	 * @param color
+	 *            the color of the passed pawns
+	 * @return the passed pawns of the given color
+	 */
+	public long getPassedPawns(ChessBoard position, int color) {
+		if (!ChessColor.isValid(color)) {
+			throw new IllegalArgumentException("Color value is not valid");
+		}
+
+		return passed[probe(position) * 2 + color];
+	}
+
+	/**
+	 * Removes all entries from the table
+	 */
+	public void clear() {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 0L;
+			middlegame[i] = 0;
+			endgame[i] = 0;
+			passed[i * 2] = 0L;
+			passed[i * 2 + 1] = 0L;
+		}
+	}
+
+	// Returns the entry for the pawns of the given position, evaluating them
+	// first if they are not in the table. An empty entry is the correct entry
+	// for a position without pawns, whose key is zero.
+	private int probe(ChessBoard position) {
+		long key = position.getPawnZobristKey().getKey();
+		int entry = (int) (key ^ (key >>> 32)) & KEY_MASK;
+		if (keys[entry] != key) {
+			long white = position.getPiecesValue(WHITE, PieceType.PAWN.value());
+			long black = position.getPiecesValue(BLACK, PieceType.PAWN.value());
+
+			keys[entry] = key;
+			middlegame[entry] = 0;
+			endgame[entry] = 0;
+			passed[entry * 2 + WHITE] = evaluatePawns(entry, WHITE, white, black, 1);
+			passed[entry * 2 + BLACK] = evaluatePawns(entry, BLACK, black, white, -1);
+		}
+
+		return entry;
+	}
+
+	// Adds the pawn structure terms of the given color to the entry, with the
+	// given sign, and returns the passed pawns of the color
+	private long evaluatePawns(int entry, int color, long own, long enemy, int sign) {
+		long enemyAttacks = color == WHITE
+				? ((enemy >>> 7) & ~FILE_A) | ((enemy >>> 9) & ~FILE_H)
+				: ((enemy << 7) & ~FILE_H) | ((enemy << 9) & ~FILE_A);
+
+		int middle = 0;
+		int end = 0;
+		long passers = 0L;
+		for (long pawns = own; pawns != 0; pawns &= pawns - 1) {
+			int square = Long.numberOfTrailingZeros(pawns);
+			int file = square & 7;
+			int rank = color == WHITE ? square >>> 3 : 7 - (square >>> 3);
+			long stop = color == WHITE ? 1L << (square + 8) : 1L << (square - 8);
+
+			if ((forward[color][square] & own) != 0L) {
+				middle += DOUBLED_MIDDLEGAME;
+				end += DOUBLED_ENDGAME;
+			} else if ((passedSpan[color][square] & enemy) == 0L) {
+				middle += passedMiddlegame[rank];
+				end += passedEndgame[rank];
+				passers |= 1L << square;
+			}
+
+			if ((adjacentFiles[file] & own) == 0L) {
+				middle += ISOLATED_MIDDLEGAME;
+				end += ISOLATED_ENDGAME;
+			} else if ((supportSpan[color][square] & own) == 0L && (stop & enemyAttacks) != 0L) {
+				middle += BACKWARD_MIDDLEGAME;
+				end += BACKWARD_ENDGAME;
+			}
+		}
+
+		middlegame[entry] += sign * middle;
+		endgame[entry] += sign * end;
+
+		return passers;
+	}
+
+	// Pawns in front of a king that has not left its first two ranks
+	private static int shield(ChessBoard position, int color) {
+		int king = position.getKingSquare(color);
+		if (king == 64 || (color == WHITE ? king >>> 3 : 7 - (king >>> 3)) > 1) {
+			return 0;
+		}
+
+		long pawns = position.getPiecesValue(color, PieceType.PAWN.value());
+		return SHIELD_NEAR * Long.bitCount(pawns & shieldNear[color][king])
+				+ SHIELD_FAR * Long.bitCount(pawns & shieldFar[color][king]);
+	}
+
+	// Passed pawns whose next square is empty
+	private int freePassers(ChessBoard position, int entry, int color) {
+		long occupied = position.getOccupancyValue(ChessBoard.BOTH_COLOR);
+		int score = 0;
+		for (long pawns = passed[entry * 2 + color]; pawns != 0; pawns &= pawns - 1) {
+			int square = Long.numberOfTrailingZeros(pawns);
+			int stop = color == WHITE ? square + 8 : square - 8;
+			if ((occupied & (1L << stop)) == 0L) {
+				score += passedFreeEndgame[color == WHITE ? square >>> 3 : 7 - (square >>> 3)];
+			}
+		}
+
+		return score;
+	}
+
+}
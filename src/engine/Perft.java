@@ -1,7 +1,5 @@
 package engine;
 
-import java.util.ArrayList;
-
 import core.ChessBoard;
 
 /**
@@ -9,7 +7,7 @@ import core.ChessBoard;
  * algorithms. For the given depths, a perft function should return the
  * following results. Format: "depth: nodes"
  * 
- * 0:1 1:20 2:400 3:8902 4:197281 5:4865351 6:119048441
+ * 0:1 1:20 2:400 3:8902 4:197281 5:4865609 6:119060324
  * 
  * @author declan
  *
@@ -28,6 +26,16 @@ public class Perft {
 	 *         position and max search depth
 	 */
 	public static long perft(ChessBoard position, int depth) {
+		MoveBuffer[] buffers = new MoveBuffer[Math.max(depth, 0)];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = new MoveBuffer();
+		}
+
+		return perft(position, depth, buffers);
+	}
+
+	// Each depth reuses its own buffer, so the count runs without allocating
+	private static long perft(ChessBoard position, int depth, MoveBuffer[] buffers) {
 		int moveCount, i;
 		long nodeCount = 0;
 
@@ -35,11 +43,12 @@ public class Perft {
 			return 1;
 		}
 
-		ArrayList<Integer> moves = MoveGeneration.getMoves(position, false);
+		MoveBuffer moves = buffers[depth - 1];
+		MoveGeneration.getMoves(position, false, moves);
 		moveCount = moves.size();
 		for (i = 0; i < moveCount; i++) {
 			position.move(moves.get(i));
-			nodeCount += perft(position, depth - 1);
+			nodeCount += perft(position, depth - 1, buffers);
 			position.unmove(moves.get(i));
 		}
 
@@ -47,7 +56,7 @@ public class Perft {
 	}
 
 	public static void main(String[] args) {
-		long[] expectedValue = { 1, 20, 400, 8902, 197281, 4865351, 119048441 };
+		long[] expectedValue = { 1, 20, 400, 8902, 197281, 4865609, 119060324 };
 		ChessBoard position = ChessBoard.ChessBoardFactory.startingBoard();
 		for (int depth = 0; depth <= 6; depth++) {
 			long value = perft(position, depth);
@@ -1,19 +1,18 @@
 package engine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import core.ChessBoard;
 import core.ChessColor;
 import core.ChessPiece;
 import core.Move;
+import core.NeuralNetwork;
+import core.PieceType;
 import core.Position;
-import engine.TranspositionTable.Transposition;
 import engine.TranspositionTable.TranspositionType;
 import util.Pair;
 
@@ -26,36 +25,228 @@ import util.Pair;
  */
 public class Search {
 
-	private static final int TABLE_KEY_SIZE = 20;
+	private static final int DEFAULT_TABLE_SIZE = 16;
+
+	// Tables at least this many megabytes are kept off the heap
+	private static final int DIRECT_TABLE_SIZE = 1024;
+
+	// Size of the heap table used when a direct table can not be allocated
+	private static final int FALLBACK_TABLE_SIZE = DIRECT_TABLE_SIZE / 2;
 
 	private static final int DRAW = 0;
 	private static final int CHECKMATE = 20000;
+	private static final int INFINITY = 30000;
+
+	private static final int DEFAULT_THREADS = 1;
+
+	// Iterations from this depth search the root within a window of this many
+	// centipawns around the previous score, doubling it whenever it fails
+	private static final int ASPIRATION_DEPTH = 4;
+	private static final int ASPIRATION_WINDOW = 25;
+
+	// Null move pruning is tried from this depth, with a reduction that
+	// grows with depth and with the margin of the static evaluation over
+	// beta. Cutoffs from this depth on are verified by a search without null
+	// moves, which catches most zugzwang positions.
+	private static final int NULL_MOVE_DEPTH = 2;
+	private static final int NULL_MOVE_REDUCTION = 3;
+	private static final int NULL_MOVE_VERIFICATION_DEPTH = 10;
+
+	// Shallow depth pruning margins in centipawns, indexed by remaining
+	// depth. A node whose static evaluation beats beta by the reverse
+	// futility margin returns at once, a node whose static evaluation is the
+	// razoring margin below alpha drops into quiescence, and quiet moves that
+	// do not give check are skipped if the static evaluation plus the
+	// futility margin can not reach alpha.
+	private static final int[] reverseFutilityMargins = { 0, 100, 200, 300 };
+	private static final int[] razoringMargins = { 0, 300, 500 };
+	private static final int[] futilityMargins = { 0, 200, 450 };
+
+	// Quiet moves after the first few are searched with a depth reduction
+	// that grows with the depth and the number of moves already searched,
+	// and are searched again at full depth if they beat alpha
+	private static final int LATE_MOVE_REDUCTION_DEPTH = 3;
+	private static final int LATE_MOVE_REDUCTION_MOVES = 3;
+
+	// At shallow depth quiet moves after this many moves are not searched
+	private static final int[] lateMoveCounts = { 0, 5, 8, 13, 20 };
+
+	// A cutoff adds the square of its remaining depth to the history of the
+	// move, and the history of a color is halved when an entry passes this
+	private static final int MAX_HISTORY = 1 << 16;
+
+	// TODO decide on standard for max number of ply
+	private static final int MAX_PLY = 100;
+
+	// Lazy SMP depth staggering, helper threads skip iterations according to
+	// these patterns so that they do not all search the same depth in lockstep
+	private static final int[] skipSize =
+			{ 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4 };
+	private static final int[] skipPhase =
+			{ 0, 1, 0, 1, 2, 3, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 6, 7 };
+
+	// Indexed by depth then move number
+	private static final int[][] reductions = new int[64][64];
+
+	static {
+		for (int depth = 1; depth < reductions.length; depth++) {
+			for (int count = 1; count < reductions[depth].length; count++) {
+				reductions[depth][count] = (int) (0.75 + Math.log(depth) * Math.log(count) / 2.25);
+			}
+		}
+	}
 
-	private static final ScheduledExecutorService timer =
-			Executors.newSingleThreadScheduledExecutor();
+	// The number of nodes searched between two checks of the deadline, a
+	// power of two
+	private static final int CHECK_INTERVAL = 1024;
 
-	private boolean continueSearch;
+	private volatile boolean stopped;
 	private long delay;
+	private long deadline; // In System.nanoTime
+	private int nodes;
+
+	private final int id;
+	private final Search[] helpers;
 
 	private TranspositionTable table;
+	private final Evaluation evaluation;
 	private int[][] killer;
 	private int[][][] history;
+	private final MoveList[] moveLists;
+	private final MovePicker[] movePickers;
+	private final boolean[] nullMoves; // Indexed by the ply the null move was made at
+	private int nullMoveMinPly;
 
 	/**
-	 * Constructs a new Search with specified time limit
+	 * Constructs a new single threaded Search with specified time limit
 	 * 
 	 * @param time
 	 *            the amount of time in milliseconds that the search has
 	 */
 	public Search(long time) {
+		this(time, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Constructs a new Search with specified time limit and number of search
+	 * threads. All threads share a single transposition table, with each
+	 * helper thread searching its own copy of the position (Lazy SMP).
+	 * 
+	 * @param time
+	 *            the amount of time in milliseconds that the search has
+	 * @param threads
+	 *            the total number of threads used by the search
+	 */
+	public Search(long time, int threads) {
+		this(time, threads, DEFAULT_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a new Search with specified time limit, number of search
+	 * threads and transposition table size.
+	 * 
+	 * @param time
+	 *            the amount of time in milliseconds that the search has
+	 * @param threads
+	 *            the total number of threads used by the search
+	 * @param tableSize
+	 *            the size of the transposition table in megabytes, tables
+	 *            of 1024 megabytes and more are allocated outside of the Java
+	 *            heap. The JVM limits direct memory to the maximum heap size
+	 *            unless -XX:MaxDirectMemorySize is given, so such a table
+	 *            usually needs that option. If the direct memory can not be
+	 *            allocated a heap table of 512 megabytes is used instead.
+	 */
+	public Search(long time, int threads, int tableSize) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count value is not valid");
+		}
+
 		delay = time;
-		continueSearch = true;
+		stopped = false;
+		deadline = 0L;
+		nodes = 0;
+		id = 0;
 
-		// TODO decide on standard for max number of ply
-		killer = new int[100][3];
+		killer = createKillerTable();
 		history = new int[ChessColor
 				.values().length][Position.NUM_TOTAL_VALUES][Position.NUM_TOTAL_VALUES];
-		table = new TranspositionTable(TABLE_KEY_SIZE);
+		table = createTable(tableSize);
+		evaluation = new Evaluation();
+		moveLists = createMoveLists();
+		movePickers = createMovePickers();
+		nullMoves = new boolean[MAX_PLY];
+		nullMoveMinPly = 0;
+
+		helpers = new Search[threads - 1];
+		for (int i = 0; i < helpers.length; i++) {
+			helpers[i] = new Search(this, i + 1);
+		}
+	}
+
+	private Search(Search main, int id) {
+		this.delay = main.delay;
+		this.stopped = false;
+		this.deadline = 0L;
+		this.nodes = 0;
+		this.id = id;
+
+		this.killer = createKillerTable();
+		this.history = new int[ChessColor
+				.values().length][Position.NUM_TOTAL_VALUES][Position.NUM_TOTAL_VALUES];
+		this.table = main.table;
+		this.evaluation = new Evaluation();
+		this.evaluation.setNetwork(main.evaluation.getNetwork());
+		this.moveLists = createMoveLists();
+		this.movePickers = createMovePickers();
+		this.nullMoves = new boolean[MAX_PLY];
+		this.nullMoveMinPly = 0;
+
+		this.helpers = new Search[0];
+	}
+
+	private static TranspositionTable createTable(int tableSize) {
+		if (tableSize < DIRECT_TABLE_SIZE) {
+			return new TranspositionTable(tableSize);
+		}
+
+		try {
+			return new DirectTranspositionTable(tableSize);
+		} catch (OutOfMemoryError e) {
+			System.err.println("Could not allocate a " + tableSize
+					+ " MB transposition table in direct memory (" + e.getMessage()
+					+ "), raise -XX:MaxDirectMemorySize. Using a " + FALLBACK_TABLE_SIZE
+					+ " MB heap table instead.");
+			return new TranspositionTable(FALLBACK_TABLE_SIZE);
+		}
+	}
+
+	// One per ply, so that the search never allocates per node
+	private static MoveList[] createMoveLists() {
+		MoveList[] lists = new MoveList[MAX_PLY];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = new MoveList();
+		}
+
+		return lists;
+	}
+
+	private static MovePicker[] createMovePickers() {
+		MovePicker[] pickers = new MovePicker[MAX_PLY];
+		for (int i = 0; i < pickers.length; i++) {
+			pickers[i] = new MovePicker();
+		}
+
+		return pickers;
+	}
+
+	private static int[][] createKillerTable() {
+		int[][] killers = new int[MAX_PLY][3];
+		for (int[] ply : killers) {
+			Arrays.fill(ply, Move.NULL_MOVE);
+		}
+
+		return killers;
 	}
 
 	/**
@@ -67,107 +258,271 @@ public class Search {
 	 * @return the best Move for the currently active color
 	 */
 	public Move execute(ChessBoard position) {
-		ArrayList<Integer> moves = MoveGeneration.getMoves(position, false);
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		stopped = false;
+		table.newSearch();
+		if (position.getNetwork() != evaluation.getNetwork()) {
+			position.setNetwork(evaluation.getNetwork());
+		}
+
+		Thread[] workers = new Thread[helpers.length];
+		for (int i = 0; i < helpers.length; i++) {
+			final Search helper = helpers[i];
+			final ChessBoard helperPosition = position.clone();
+
+			helper.stopped = false;
+			helper.deadline = deadline;
+			workers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					helper.iterate(helperPosition);
+				}
+
+			}, "Search helper " + helper.id);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		int bestMove = iterate(position);
+
+		for (int i = 0; i < helpers.length; i++) {
+			helpers[i].stopped = true;
+		}
+
+		for (int i = 0; i < workers.length; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		return Move.from(bestMove);
+	}
+
+	/**
+	 * Sets the neural network that evaluates positions in place of the hand
+	 * written evaluation, or goes back to the hand written evaluation if the
+	 * network is null. Evaluations made with the previous evaluation are
+	 * cleared.
+	 * 
+	 * @param network
+	 *            the network to evaluate positions with, or null
+	 */
+	public void setNetwork(NeuralNetwork network) {
+		table.clear();
+		evaluation.setNetwork(network);
+		for (Search helper : helpers) {
+			helper.evaluation.setNetwork(network);
+		}
+	}
+
+	/**
+	 * Clears all information kept between searches, used when the next search
+	 * is not a continuation of the same game
+	 */
+	public void newGame() {
+		table.clear();
+	}
+
+	/**
+	 * Runs the iterative deepening loop on the given position until the search
+	 * is either out of time or stopped, returning the best move of the last
+	 * completed iteration. Each iteration searches the root moves in the order
+	 * of their scores in the previous iteration, within an aspiration window
+	 * around the previous best score.
+	 */
+	private int iterate(ChessBoard position) {
 		ArrayList<Pair<Integer, Integer>> movesWithValues = new ArrayList<Pair<Integer, Integer>>();
+		MoveList moveList = moveLists[0];
+		moveList.generate(position, table, killer, history, 0, false);
+		while (moveList.hasNext()) {
+			movesWithValues.add(new Pair<Integer, Integer>(moveList.next(), -INFINITY));
+		}
+		int bestMove = movesWithValues.isEmpty() ? Move.NULL_MOVE : movesWithValues.get(0).first();
+		int bestScore = 0;
 
 		// SearchLogger searchLog = new SearchLogger(delay,
 		// position.getZobristKey().getKey());
 
-		this.continueSearch = true;
-		ScheduledFuture<?> task = timer.schedule(new Runnable() {
-
-			@Override
-			public void run() {
-				continueSearch = false;
+		for (int searchDepth = 1; searchDepth < MAX_PLY && !stopped
+				&& !movesWithValues.isEmpty(); searchDepth++) {
+			if (isSkippedDepth(searchDepth)) {
+				continue;
 			}
 
-		}, delay, TimeUnit.MILLISECONDS);
-
-		for (int searchDepth = 1; continueSearch; searchDepth++) {
 			// searchLog.logIterativeDeepeningLevel(searchDepth);
-			movesWithValues.clear();
-			killer = new int[100][3];
+			killer = createKillerTable();
 			history = new int[ChessColor
 					.values().length][Position.NUM_TOTAL_VALUES][Position.NUM_TOTAL_VALUES];
 
-			MoveList moveList = new MoveList(moves, position, table, killer, history,
-					position.getActiveColor(), 0, false);
-			for (Integer move : moveList) {
-				position.move(move);
-				// searchLog.logNewSearchLevel(0, move);
-
-				int value = pvs(position, searchDepth, Integer.MIN_VALUE, Integer.MAX_VALUE, 1);
-				movesWithValues.add(new Pair<Integer, Integer>(move, value));
-
-				// searchLog.logSearchLevelReturn(0, move, value);
-				position.unmove(move);
+			int delta = ASPIRATION_WINDOW;
+			int alpha = -INFINITY;
+			int beta = INFINITY;
+			if (searchDepth >= ASPIRATION_DEPTH) {
+				alpha = Math.max(bestScore - delta, -INFINITY);
+				beta = Math.min(bestScore + delta, INFINITY);
 			}
 
-			// searchLog.logIterativeDeepeningBestMove(searchDepth,
-			// table.get(position.getZobristKey()) != null ?
-			// table.get(position.getZobristKey()).bestMove : Move.NULL_MOVE);
-
-			Collections.sort(movesWithValues, new Comparator<Pair<Integer, Integer>>() {
+			int score;
+			while (true) {
+				score = searchRoot(position, movesWithValues, searchDepth, alpha, beta);
+				if (stopped) {
+					break;
+				}
 
-				@Override
-				public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2) {
-					return Integer.compare(o1.second(), o2.second());
+				// The window is widened on the side that failed until the score
+				// falls inside of it
+				if (score <= alpha) {
+					alpha = Math.max(score - delta, -INFINITY);
+				} else if (score >= beta) {
+					beta = Math.min(score + delta, INFINITY);
+				} else {
+					break;
 				}
+				delta *= 2;
+			}
 
-			});
+			if (stopped) {
+				break;
+			}
 
-			table.set(position.getZobristKey(),
-					new Transposition(position.getZobristKey().getKey(),
-							movesWithValues.get(0).first(), movesWithValues.get(0).second(), 0,
-							TranspositionType.EXACT.value()));
+			bestMove = movesWithValues.get(0).first();
+			bestScore = score;
+			table.store(position.getZobristKey().getKey(), bestMove, bestScore, searchDepth,
+					TranspositionType.EXACT.value(), TranspositionTable.NO_EVAL);
 
-			System.err.println("   PV: " + getPVString(position, table));
+			if (id == 0) {
+				System.err.printf("%4d hashfull %4d PV: %s\n", searchDepth, table.hashfull(),
+						getPVString(position, table, 0));
+			}
 		}
 
 		// searchLog.close();
-		task.cancel(true);
 
-		return Move.from(movesWithValues.get(0).first());
+		return bestMove;
 	}
 
-	private String getPVString(ChessBoard position, TranspositionTable table) {
-		if (table.get(position.getZobristKey()) != null) {
-			Transposition pv = table.get(position.getZobristKey());
-			if (pv.key == position.getZobristKey().getKey() && pv.bestMove != Move.NULL_MOVE
-					&& Move.isValid(pv.bestMove)) {
-				int bestMove = pv.bestMove;
-				String result = "";
-				position.move(bestMove);
-				result = getPVString(position, table);
-				position.unmove(bestMove);
-
-				return ChessNotation.algebraic(bestMove)
-						+ ((!result.equals("")) ? " > " + result : "");
+	// Searches the root moves in order, the first with the given window and
+	// the rest with a null window that is only widened for a move that beats
+	// alpha. The moves are then sorted by their scores from best to worst, a
+	// move that was not searched because of a fail high keeps its place after
+	// the searched moves. Returns the best score, which is a bound if it is
+	// outside of the window.
+	private int searchRoot(ChessBoard position, ArrayList<Pair<Integer, Integer>> moves,
+			int depth, int alpha, int beta) {
+		for (int i = 0; i < moves.size(); i++) {
+			moves.set(i, new Pair<Integer, Integer>(moves.get(i).first(), -INFINITY));
+		}
+
+		int bestScore = -INFINITY;
+		for (int i = 0; i < moves.size(); i++) {
+			int move = moves.get(i).first();
+			position.move(move);
+
+			int score;
+			if (i == 0) {
+				score = -pvs(position, depth, -beta, -alpha, 1);
 			} else {
-				return "";
+				score = -pvs(position, depth, -alpha - 1, -alpha, 1);
+				if (alpha < score && score < beta) {
+					score = -pvs(position, depth, -beta, -alpha, 1);
+				}
 			}
-		} else {
+
+			position.unmove(move);
+			if (stopped) {
+				return bestScore;
+			}
+
+			moves.set(i, new Pair<Integer, Integer>(move, score));
+
+			if (score > bestScore) {
+				bestScore = score;
+				if (score > alpha) {
+					alpha = score;
+					if (score >= beta) {
+						break;
+					}
+				}
+			}
+		}
+
+		// Stable, so moves with equal scores keep their previous order
+		Collections.sort(moves, new Comparator<Pair<Integer, Integer>>() {
+
+			@Override
+			public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2) {
+				return Integer.compare(o2.second(), o1.second());
+			}
+
+		});
+
+		return bestScore;
+	}
+
+	private boolean isSkippedDepth(int depth) {
+		if (id == 0) {
+			return false;
+		}
+
+		int i = (id - 1) % skipSize.length;
+		return ((depth + skipPhase[i]) / skipSize[i]) % 2 != 0;
+	}
+
+	// Follows the hash moves from the given position, stopping at a repeated
+	// position since the hash moves of a repetition cycle would never end
+	private String getPVString(ChessBoard position, TranspositionTable table, int length) {
+		long entry = table.probe(position.getZobristKey().getKey());
+		if (length >= MAX_PLY || entry == TranspositionTable.NULL_ENTRY) {
+			return "";
+		}
+
+		int bestMove = TranspositionTable.getBestMove(entry);
+		if (!MoveGeneration.isLegal(position, bestMove, new MoveBuffer())) {
 			return "";
 		}
+
+		String result = "";
+		position.move(bestMove);
+		if (!position.isRepetition()) {
+			result = getPVString(position, table, length + 1);
+		}
+		position.unmove(bestMove);
+
+		return ChessNotation.algebraic(bestMove) + ((!result.equals("")) ? " > " + result : "");
 	}
 
 	private int pvs(ChessBoard position, int depth, int alpha, int beta, int ply) {
+		if (isStopped()) {
+			return DRAW;
+		}
+
+		// Leaves room for the quiescence search of the next ply
+		if (ply >= MAX_PLY - 1) {
+			return evaluation.evaluate(position);
+		}
+
 		int alphaOriginal = alpha;
+		boolean pvNode = beta - alpha > 1;
 
-		Transposition entry = table.get(position.getZobristKey());
-		if (entry != null && entry.depth >= depth) {
+		long entry = table.probe(position.getZobristKey().getKey());
+		if (entry != TranspositionTable.NULL_ENTRY && TranspositionTable.getDepth(entry) >= depth) {
 			// log.logTranspositionHit(ply, entry);
 
-			if (entry.type == TranspositionType.EXACT.value()) {
-				return entry.value;
-			} else if (entry.type == TranspositionType.LOWER.value()) {
-				alpha = Math.max(alpha, entry.value);
-			} else if (entry.type == TranspositionType.UPPER.value()) {
-				beta = Math.min(beta, entry.value);
+			int type = TranspositionTable.getType(entry);
+			int value = TranspositionTable.getValue(entry);
+			if (type == TranspositionType.EXACT.value()) {
+				return value;
+			} else if (type == TranspositionType.LOWER.value()) {
+				alpha = Math.max(alpha, value);
+			} else if (type == TranspositionType.UPPER.value()) {
+				beta = Math.min(beta, value);
 			}
 
 			if (alpha >= beta) {
-				return entry.value;
+				return value;
 			}
 		}
 
@@ -185,31 +540,97 @@ public class Search {
 			return DRAW;
 		}
 
-		MoveList moves = new MoveList(MoveGeneration.getMoves(position, false), position, table,
-				killer, history, position.getActiveColor(), ply, false);
-		if (moves.size() == 0) {
-			if (position.isCheck()) {
-				return -CHECKMATE + ply;
-			} else {
-				return DRAW;
+		// Kept with the entry of this node, so that a later visit does not have
+		// to evaluate the position again
+		int staticEval = TranspositionTable.NO_EVAL;
+		boolean inCheck = position.isCheck();
+		if (!inCheck) {
+			if (entry != TranspositionTable.NULL_ENTRY) {
+				staticEval = table.probeEval(position.getZobristKey().getKey());
+			}
+			if (staticEval == TranspositionTable.NO_EVAL) {
+				staticEval = evaluation.evaluate(position);
+			}
+		}
+
+		if (!inCheck && !pvNode && Math.abs(beta) < CHECKMATE - MAX_PLY) {
+			if (depth < reverseFutilityMargins.length
+					&& staticEval - reverseFutilityMargins[depth] >= beta) {
+				return staticEval - reverseFutilityMargins[depth];
+			}
+
+			if (depth < razoringMargins.length && staticEval + razoringMargins[depth] < alpha) {
+				int score = quiescent(position, alpha - 1, alpha, ply + 1);
+				if (score < alpha) {
+					return score;
+				}
 			}
 		}
 
+		boolean futile = !inCheck && !pvNode && depth < futilityMargins.length
+				&& staticEval + futilityMargins[depth] <= alpha
+				&& Math.abs(alpha) < CHECKMATE - MAX_PLY;
+
+		// If passing the turn still fails high on a reduced search, then a real
+		// move almost surely does as well. This does not hold in zugzwang, so
+		// null moves are not made in check, twice in a row, in PV nodes or
+		// with only pawns left.
+		if (!inCheck && !pvNode && depth >= NULL_MOVE_DEPTH && staticEval >= beta
+				&& ply >= nullMoveMinPly
+				&& !nullMoves[ply - 1] && beta < CHECKMATE - MAX_PLY
+				&& position.hasNonPawnMaterial(position.getActiveColor())) {
+			int reduction = NULL_MOVE_REDUCTION + depth / 6
+					+ Math.min((staticEval - beta) / PieceType.PAWN.score() / 2, 3);
+
+			nullMoves[ply] = true;
+			position.moveNull();
+			int score = -pvs(position, depth - reduction - 1, -beta, -beta + 1, ply + 1);
+			position.unmoveNull();
+			nullMoves[ply] = false;
+
+			if (score >= beta && !stopped) {
+				// A mate found after passing is not proven
+				if (score >= CHECKMATE - MAX_PLY) {
+					score = beta;
+				}
+
+				if (depth < NULL_MOVE_VERIFICATION_DEPTH) {
+					return score;
+				}
+
+				int minPly = nullMoveMinPly;
+				nullMoveMinPly = ply + 3 * (depth - reduction) / 4;
+				int verified = pvs(position, depth - reduction - 1, beta - 1, beta, ply);
+				nullMoveMinPly = minPly;
+
+				if (verified >= beta) {
+					return score;
+				}
+			}
+		}
+
+		MovePicker moves = movePickers[ply];
+		moves.reset(position, (entry != TranspositionTable.NULL_ENTRY)
+				? TranspositionTable.getBestMove(entry) : Move.NULL_MOVE, killer[ply], history);
+
 		boolean madeFirstMove = false;
+		int moveCount = 0;
 		int bestMove = Move.NULL_MOVE;
-		int bestScore = Integer.MIN_VALUE;
-		for (Integer move : moves) {
+		int bestScore = -INFINITY;
+		int move;
+		while ((move = moves.next()) != Move.NULL_MOVE) {
+			moveCount++;
 			if (!madeFirstMove) {
 				position.move(move);
 				int ext = determineExtensions(position, moves, depth, ply);
 				bestScore = -pvs(position, depth + ext - 1, -beta, -alpha, ply + 1);
+				bestMove = move;
 				position.unmove(move);
 
 				if (bestScore > alpha) {
 					if (bestScore >= beta) {
-						bestMove = move;
 						updateKillerTable(ply, move);
-						updateHistoryTable(position.getActiveColor(), move, ply);
+						updateHistoryTable(position.getActiveColor(), move, depth);
 						break;
 					}
 
@@ -217,9 +638,42 @@ public class Search {
 				}
 				madeFirstMove = true;
 			} else {
+				boolean quiet = MovePicker.isKillerCandidate(move);
+				if (quiet && !pvNode && !inCheck && depth < lateMoveCounts.length
+						&& moveCount > lateMoveCounts[depth]
+						&& bestScore > -CHECKMATE + MAX_PLY) {
+					continue;
+				}
+
+				int historyScore = history[position.getActiveColor()][Move
+						.getStartPosition(move)][Move.getEndPosition(move)];
 				position.move(move);
+				if (futile && quiet && !position.isCheck()) {
+					position.unmove(move);
+					continue;
+				}
+
 				int ext = determineExtensions(position, moves, depth, ply);
-				int score = -pvs(position, depth + ext - 1, -alpha - 1, -alpha, ply + 1);
+
+				int reduction = 0;
+				if (quiet && depth >= LATE_MOVE_REDUCTION_DEPTH
+						&& moveCount > LATE_MOVE_REDUCTION_MOVES && !inCheck && ext == 0) {
+					reduction = reductions[Math.min(depth, reductions.length - 1)][Math
+							.min(moveCount, reductions[0].length - 1)];
+					if (pvNode) {
+						reduction--;
+					}
+					if (historyScore > 0) {
+						reduction--;
+					}
+					reduction = Math.max(0, Math.min(reduction, depth - 2));
+				}
+
+				int score = -pvs(position, depth + ext - 1 - reduction, -alpha - 1, -alpha,
+						ply + 1);
+				if (reduction > 0 && score > alpha) {
+					score = -pvs(position, depth + ext - 1, -alpha - 1, -alpha, ply + 1);
+				}
 				if (alpha < score && score < beta) {
 					score = -pvs(position, depth + ext - 1, -beta, -alpha, ply + 1);
 					if (score > alpha) {
@@ -233,66 +687,116 @@ public class Search {
 					bestMove = move;
 					if (score >= beta) {
 						updateKillerTable(ply, move);
-						updateHistoryTable(position.getActiveColor(), move, ply);
+						updateHistoryTable(position.getActiveColor(), move, depth);
 						break;
 					}
 				}
 			}
 		}
 
+		if (moveCount == 0) {
+			if (position.isCheck()) {
+				return -CHECKMATE + ply;
+			} else {
+				return DRAW;
+			}
+		}
+
+		// An aborted search must not store the results of an unfinished node
+		if (stopped) {
+			return bestScore;
+		}
+
+		// The move that caused a cutoff is kept, it is the first move tried
+		// the next time this position is searched
 		TranspositionType type;
 		if (bestScore <= alphaOriginal) {
 			type = TranspositionType.UPPER;
 			bestMove = Move.NULL_MOVE;
 		} else if (bestScore >= beta) {
 			type = TranspositionType.LOWER;
-			bestMove = Move.NULL_MOVE;
 		} else {
 			type = TranspositionType.EXACT;
 		}
-		entry = new Transposition(position.getZobristKey().getKey(), bestMove, bestScore, depth,
-				type.value());
-		table.set(position.getZobristKey(), entry);
+		table.store(position.getZobristKey().getKey(), bestMove, bestScore, depth, type.value(),
+				staticEval);
 
 		return bestScore;
 	}
 
-	private int determineExtensions(ChessBoard position, MoveList moves, int depth, int ply) {
+	// Counts a node and stops the search once the deadline has passed. The
+	// clock is only read every CHECK_INTERVAL nodes, when stopped the whole
+	// search unwinds and its unfinished iteration is thrown away.
+	private boolean isStopped() {
+		if ((++nodes & (CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline >= 0) {
+			stopped = true;
+		}
+
+		return stopped;
+	}
+
+	private int determineExtensions(ChessBoard position, MovePicker moves, int depth, int ply) {
 		if (position.isCheck()) {
 			return 1;
-		} else if (moves.size() == 1) {
+		} else if (moves.isSingleEvasion()) {
 			return 1;
 		} else {
 			return 0;
 		}
 	}
 
-	private void updateKillerTable(int ply, Integer move) {
-		for (int i = 0; i < killer[ply].length; i++) {
-			if (killer[ply][i] == Move.NULL_MOVE) {
-				killer[ply][i] = move;
-			}
+	// Only quiet moves are kept, the newest killer first
+	private void updateKillerTable(int ply, int move) {
+		int[] killers = killer[ply];
+		if (!MovePicker.isKillerCandidate(move) || killers[0] == move) {
+			return;
 		}
+
+		System.arraycopy(killers, 0, killers, 1, killers.length - 1);
+		killers[0] = move;
 	}
 
-	private void updateHistoryTable(int activeColor, int move, int ply) {
-		if (Move.getEndPiece(move) == ChessPiece.NULL_PIECE) {
-			history[activeColor][Move.getStartPosition(move)][Move.getEndPosition(move)] +=
-					1 << ply;
+	private void updateHistoryTable(int activeColor, int move, int depth) {
+		if (Move.getEndPiece(move) != ChessPiece.NULL_PIECE) {
+			return;
+		}
+
+		int[][] colorHistory = history[activeColor];
+		int[] entries = colorHistory[Move.getStartPosition(move)];
+		int end = Move.getEndPosition(move);
+		entries[end] += depth * depth;
+		if (entries[end] > MAX_HISTORY) {
+			for (int[] row : colorHistory) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
 		}
 	}
 
 	private int quiescent(ChessBoard position, int alpha, int beta, int ply) {
-		int standingPat = position.evaluate();
+		if (isStopped()) {
+			return DRAW;
+		}
+
+		int standingPat = table.probeEval(position.getZobristKey().getKey());
+		if (standingPat == TranspositionTable.NO_EVAL) {
+			standingPat = evaluation.evaluate(position, alpha, beta);
+		}
 		if (standingPat >= beta) {
 			return beta;
 		} else if (alpha < standingPat) {
 			alpha = standingPat;
 		}
 
-		MoveList moves = new MoveList(MoveGeneration.getMoves(position, true), position, table,
-				killer, history, position.getActiveColor(), ply, true);
-		for (Integer move : moves) {
+		if (ply >= MAX_PLY) {
+			return alpha;
+		}
+
+		MoveList moves = moveLists[ply];
+		moves.generate(position, table, killer, history, ply, true);
+		while (moves.hasNext()) {
+			int move = moves.next();
 			position.move(move);
 			int value = -quiescent(position, -beta, -alpha, ply + 1);
 			position.unmove(move);
@@ -6,7 +6,6 @@ import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 
-import engine.TranspositionTable.Transposition;
 import engine.TranspositionTable.TranspositionType;
 
 public class SearchLogger {
@@ -59,9 +58,11 @@ public class SearchLogger {
 		output.printf("Evaluating %d to %s at ply %d\n", positionKey, value, ply);
 	}
 
-	public void logTranspositionHit(int ply, Transposition entry) {
+	public void logTranspositionHit(int ply, long entry) {
 		indent(ply);
-		output.printf("Cache hit %s: %d\n", TranspositionType.from(entry.type), entry.value);
+		output.printf("Cache hit %s: %d\n",
+				TranspositionType.from(TranspositionTable.getType(entry)),
+				TranspositionTable.getValue(entry));
 	}
 
 	public void logNewSearchLevel(int ply, int move) {
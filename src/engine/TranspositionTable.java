@@ -1,75 +1,22 @@
 package engine;
 
+import java.util.Arrays;
+
+import core.Move;
 import core.ZobristKey;
 
 /**
- * A hash table indexed by ZobristKey that contains Transpositions
+ * A hash table indexed by ZobristKey that contains transpositions. Entries
+ * are packed into a flat long array so that probing and storing never
+ * allocate, and so the table can be shared by several search threads without
+ * locking. Entries are grouped into cache line sized buckets, and a store
+ * replaces the least valuable entry of its bucket.
  * 
  * @author declan
  *
  */
 public class TranspositionTable {
 
-	/**
-	 * Returns a mask from the starting bit with the specified length. The
-	 * acceptable range of values for a bit is from 1-32.
-	 * 
-	 * @param startBit
-	 *            the bit to start the mask at
-	 * @param length
-	 *            the length of the mask
-	 * @return a mask from the starting bit to the ending bit
-	 */
-	private static int createMask(int startBit, int length) {
-		if (!(1 <= startBit && startBit <= 32)) {
-			throw new IllegalArgumentException("Starting bit value is not valid");
-		} else if (!(1 <= length && length <= 32)) {
-			throw new IllegalArgumentException("Length value is not valid");
-		} else if (!(Integer.SIZE - (startBit + length) >= 0)) {
-			throw new IllegalArgumentException(
-					"Combination of starting bit and length values is not valid");
-		}
-
-		return ((-1) >>> (Integer.SIZE - length)) << (startBit - 1);
-	}
-
-	/**
-	 * A container for useful information about an already evaluated position.
-	 * 
-	 * @author declan
-	 *
-	 */
-	public static class Transposition {
-		/**
-		 * The value of the ZobristKey for the stored position
-		 */
-		public final long key;
-		/**
-		 * The best move for the stored position
-		 */
-		public final int bestMove;
-		/**
-		 * The score evaluation for the stored position
-		 */
-		public final int value;
-		/**
-		 * The depth this position was saved at
-		 */
-		public final int depth;
-		/**
-		 * The type of stored entry
-		 */
-		public final int type;
-
-		public Transposition(long key, int move, int value, int depth, int type) {
-			this.key = key;
-			this.bestMove = move;
-			this.value = value;
-			this.depth = depth;
-			this.type = type;
-		}
-	}
-
 	/**
 	 * The type of stored entry for the transposition table
 	 * 
@@ -116,53 +63,372 @@ public class TranspositionTable {
 		}
 	}
 
-	private final Transposition[] table;
-	private final int TABLE_SIZE;
-	private final int KEY_MASK;
+	/**
+	 * The value returned by a probe that found no entry for the given key
+	 */
+	public static final long NULL_ENTRY = 0L;
+
+	/**
+	 * The static evaluation stored with an entry whose position was not
+	 * evaluated
+	 */
+	public static final int NO_EVAL = Short.MIN_VALUE;
 
 	/**
-	 * Construct new TranspositionTable with key bit size give. The size of the
-	 * table is determined from that number.
+	 * The number of entries that share a bucket. A bucket of four entries is
+	 * eight longs, the size of a typical cache line.
+	 */
+	public static final int BUCKET_SIZE = 4;
+
+	static final int LONGS_PER_ENTRY = 2;
+	static final int LONGS_PER_BUCKET = LONGS_PER_ENTRY * BUCKET_SIZE;
+	static final int BYTES_PER_BUCKET = LONGS_PER_BUCKET * (Long.SIZE / Byte.SIZE);
+
+	// Layout of the packed data half of an entry. The type is stored offset by
+	// one so that an empty slot (all zeros) never decodes as a valid entry.
+	private static final int MOVE_SHIFT = 0;
+	private static final long MOVE_MASK = 0xFFFFFFFFL;
+	private static final int VALUE_SHIFT = 32;
+	private static final long VALUE_MASK = 0xFFFFL;
+	private static final int DEPTH_SHIFT = 48;
+	private static final long DEPTH_MASK = 0xFFL;
+	private static final int TYPE_SHIFT = 56;
+	private static final long TYPE_MASK = 0x3L;
+	private static final int GENERATION_SHIFT = 58;
+	private static final long GENERATION_MASK = 0x3FL;
+
+	// The check half of an entry holds the low bits of key ^ data, which is
+	// enough to tell positions apart, and the static evaluation in the rest.
+	// Buckets are indexed by the high bits of the key, so that the checked
+	// bits only overlap the index in tables of more than 2^16 buckets.
+	private static final long CHECK_MASK = 0x0000FFFFFFFFFFFFL;
+	private static final int EVAL_SHIFT = 48;
+	private static final long EVAL_MASK = 0xFFFFL;
+
+	// An entry from an older search counts as this many plies shallower for
+	// every generation it is behind when choosing which entry to replace
+	private static final int AGE_WEIGHT = 8;
+
+	// A shallower result for the same position only replaces the stored one
+	// when it is within this many plies of the stored depth
+	private static final int SAME_KEY_DEPTH_MARGIN = 3;
+
+	private static final int HASHFULL_SAMPLE = 1000;
+
+	private final long[] table;
+	private final long TABLE_SIZE;
+	private final long KEY_MASK;
+	private final int KEY_SHIFT;
+
+	private int generation;
+
+	/**
+	 * Construct new TranspositionTable on the Java heap using at most the
+	 * given amount of memory. The number of buckets is rounded down to a power
+	 * of two.
 	 * 
-	 * @param bits
-	 *            the number of bits that the kye will have
+	 * @param megabytes
+	 *            the maximum size of the table in megabytes
+	 */
+	public TranspositionTable(int megabytes) {
+		this(getBucketCount(megabytes), true);
+	}
+
+	/**
+	 * Construct a TranspositionTable with the given number of buckets. Tables
+	 * that are not on the heap must provide their own storage by overriding
+	 * read, write and fill.
 	 */
-	public TranspositionTable(int bits) {
-		this.TABLE_SIZE = 1 << (bits - 1);
-		this.KEY_MASK = createMask(1, bits - 1);
-		this.table = new Transposition[TABLE_SIZE];
+	TranspositionTable(long buckets, boolean onHeap) {
+		if (onHeap && buckets * LONGS_PER_BUCKET > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Size value is too large for an on heap table");
+		}
+
+		this.TABLE_SIZE = buckets;
+		this.KEY_MASK = TABLE_SIZE - 1;
+		this.KEY_SHIFT = Long.SIZE - Long.numberOfTrailingZeros(TABLE_SIZE);
+		this.table = onHeap ? new long[(int) (TABLE_SIZE * LONGS_PER_BUCKET)] : null;
+		this.generation = 0;
 	}
 
 	/**
-	 * Returns the Transposition entry stored at the given key value, or null
+	 * Returns the number of buckets that fit in the given amount of memory,
+	 * rounded down to a power of two
+	 */
+	static long getBucketCount(long megabytes) {
+		if (megabytes < 1) {
+			throw new IllegalArgumentException("Size value is not valid");
+		}
+
+		return Long.highestOneBit((megabytes << 20) / BYTES_PER_BUCKET);
+	}
+
+	/**
+	 * Returns the number of buckets in the table
+	 * 
+	 * @return the number of buckets in the table
+	 */
+	public long size() {
+		return TABLE_SIZE;
+	}
+
+	/**
+	 * Marks the start of a new search. Entries stored during earlier searches
+	 * become preferred candidates for replacement.
+	 */
+	public void newSearch() {
+		generation = (int) ((generation + 1) & GENERATION_MASK);
+	}
+
+	/**
+	 * Returns the packed entry stored for the given key value, or NULL_ENTRY
+	 * if there is no entry for the key. Each slot is stored as the pair (key ^
+	 * data, data), with the static evaluation in the top bits of the first
+	 * half, so a slot that was overwritten by another position or torn by a
+	 * concurrent write fails the xor check and is reported as missing.
 	 * 
 	 * @param key
 	 *            the key value to perform the lookup with
-	 * @return the Transposition entry stored at the given key value, or null
+	 * @return the packed entry stored for the given key value, or NULL_ENTRY
 	 */
-	public Transposition get(ZobristKey key) {
-		return table[squashKey(key.getKey())];
+	public long probe(long key) {
+		long bucket = squashKey(key) * LONGS_PER_BUCKET;
+		for (long i = bucket; i < bucket + LONGS_PER_BUCKET; i += LONGS_PER_ENTRY) {
+			long data = read(i + 1);
+			if (((read(i) ^ data ^ key) & CHECK_MASK) == 0L && data != NULL_ENTRY) {
+				return data;
+			}
+		}
+
+		return NULL_ENTRY;
 	}
 
 	/**
-	 * Sets the entry in the table at the given key to the given value,
-	 * returning the entry that was stored in that location
+	 * Returns the static evaluation stored with the entry for the given key
+	 * value, or NO_EVAL if there is no entry or it has no static evaluation
 	 * 
 	 * @param key
-	 *            the key value to perform the lookup at
+	 *            the key value to perform the lookup with
+	 * @return the static evaluation stored for the given key value, or NO_EVAL
+	 */
+	public int probeEval(long key) {
+		long bucket = squashKey(key) * LONGS_PER_BUCKET;
+		for (long i = bucket; i < bucket + LONGS_PER_BUCKET; i += LONGS_PER_ENTRY) {
+			long data = read(i + 1);
+			long check = read(i);
+			if (((check ^ data ^ key) & CHECK_MASK) == 0L && data != NULL_ENTRY) {
+				return (short) ((check >>> EVAL_SHIFT) & EVAL_MASK);
+			}
+		}
+
+		return NO_EVAL;
+	}
+
+	/**
+	 * Stores an entry for the given key value. If the bucket already holds an
+	 * entry for the key it is updated, unless it was searched considerably
+	 * deeper during the current search. Otherwise the entry with the lowest
+	 * depth, after accounting for its age, is replaced.
+	 * 
+	 * @param key
+	 *            the key value to store the entry at
+	 * @param move
+	 *            the best move for the position
 	 * @param value
-	 *            the value to set the entry to
-	 * @return the entry previously stored in the given location, null if
-	 *         nothing
+	 *            the score evaluation for the position
+	 * @param depth
+	 *            the depth the position was searched to, depths above 255 are
+	 *            stored as 255
+	 * @param type
+	 *            the serialized TranspositionType of the entry
+	 * @param staticEval
+	 *            the static evaluation of the position, or NO_EVAL
+	 */
+	public void store(long key, int move, int value, int depth, int type, int staticEval) {
+		if (!(Short.MIN_VALUE <= value && value <= Short.MAX_VALUE)) {
+			throw new IllegalArgumentException("Value is not valid");
+		} else if (!(Short.MIN_VALUE <= staticEval && staticEval <= Short.MAX_VALUE)) {
+			throw new IllegalArgumentException("Static evaluation value is not valid");
+		} else if (depth < 0) {
+			throw new IllegalArgumentException("Depth value is not valid");
+		} else if (!TranspositionType.isValid(type)) {
+			throw new IllegalArgumentException("Type value is not valid");
+		}
+
+		// Deeper results are stored as the deepest depth the entry can hold
+		depth = (int) Math.min(depth, DEPTH_MASK);
+
+		long bucket = squashKey(key) * LONGS_PER_BUCKET;
+		long replace = bucket;
+		int replaceScore = Integer.MAX_VALUE;
+		for (long i = bucket; i < bucket + LONGS_PER_BUCKET; i += LONGS_PER_ENTRY) {
+			long data = read(i + 1);
+			long check = read(i);
+
+			if (data != NULL_ENTRY && ((check ^ data ^ key) & CHECK_MASK) == 0L) {
+				if (depth + SAME_KEY_DEPTH_MARGIN < getDepth(data) && getAge(data) == 0
+						&& type != TranspositionType.EXACT.value()) {
+					return;
+				}
+
+				// Keep the move and evaluation of the earlier search if this
+				// search has none
+				if (move == Move.NULL_MOVE) {
+					move = getBestMove(data);
+				}
+				if (staticEval == NO_EVAL) {
+					staticEval = (short) ((check >>> EVAL_SHIFT) & EVAL_MASK);
+				}
+
+				replace = i;
+				break;
+			}
+
+			int score = (data == NULL_ENTRY) ? Integer.MIN_VALUE
+					: getDepth(data) - AGE_WEIGHT * getAge(data);
+			if (score < replaceScore) {
+				replaceScore = score;
+				replace = i;
+			}
+		}
+
+		long data = ((move & MOVE_MASK) << MOVE_SHIFT) | ((value & VALUE_MASK) << VALUE_SHIFT)
+				| ((depth & DEPTH_MASK) << DEPTH_SHIFT) | (((type + 1) & TYPE_MASK) << TYPE_SHIFT)
+				| ((generation & GENERATION_MASK) << GENERATION_SHIFT);
+
+		write(replace, ((key ^ data) & CHECK_MASK) | ((staticEval & EVAL_MASK) << EVAL_SHIFT));
+		write(replace + 1, data);
+	}
+
+	/**
+	 * Returns an estimate of how full the table is with entries from the
+	 * current search, in permille
+	 * 
+	 * @return the number of entries out of a thousand that were stored during
+	 *         the current search
+	 */
+	public int hashfull() {
+		int sample = (int) Math.min(HASHFULL_SAMPLE, TABLE_SIZE * BUCKET_SIZE);
+		int used = 0;
+		for (int i = 0; i < sample; i++) {
+			long data = read((long) i * LONGS_PER_ENTRY + 1);
+			if (data != NULL_ENTRY && getAge(data) == 0) {
+				used++;
+			}
+		}
+
+		return used * 1000 / sample;
+	}
+
+	/**
+	 * Removes every entry from the table, splitting the work across all
+	 * available processors
+	 */
+	public void clear() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long length = TABLE_SIZE * LONGS_PER_BUCKET;
+		long chunk = (length / threads + LONGS_PER_BUCKET - 1) / LONGS_PER_BUCKET
+				* LONGS_PER_BUCKET;
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final long start = Math.min(i * chunk, length);
+			final long end = Math.min(start + chunk, length);
+			workers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					fill(start, end);
+				}
+
+			}, "Transposition table clear " + i);
+			workers[i].start();
+		}
+
+		for (int i = 0; i < threads; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		generation = 0;
+	}
+
+	/**
+	 * Returns the best move from the given packed entry
+	 * 
+	 * @param entry
+	 *            the packed entry to get the best move of
+	 * @return the best move from the given packed entry
+	 */
+	public static int getBestMove(long entry) {
+		return (int) ((entry >>> MOVE_SHIFT) & MOVE_MASK);
+	}
+
+	/**
+	 * Returns the score evaluation from the given packed entry
+	 * 
+	 * @param entry
+	 *            the packed entry to get the score evaluation of
+	 * @return the score evaluation from the given packed entry
 	 */
-	public Transposition set(ZobristKey key, Transposition value) {
-		Transposition oldValue = table[squashKey(key.getKey())];
-		table[squashKey(key.getKey())] = value;
-		return oldValue;
+	public static int getValue(long entry) {
+		return (short) ((entry >>> VALUE_SHIFT) & VALUE_MASK);
+	}
+
+	/**
+	 * Returns the depth from the given packed entry
+	 * 
+	 * @param entry
+	 *            the packed entry to get the depth of
+	 * @return the depth from the given packed entry
+	 */
+	public static int getDepth(long entry) {
+		return (int) ((entry >>> DEPTH_SHIFT) & DEPTH_MASK);
+	}
+
+	/**
+	 * Returns the serialized TranspositionType from the given packed entry
+	 * 
+	 * @param entry
+	 *            the packed entry to get the type of
+	 * @return the serialized TranspositionType from the given packed entry
+	 */
+	public static int getType(long entry) {
+		return (int) ((entry >>> TYPE_SHIFT) & TYPE_MASK) - 1;
+	}
+
+	/**
+	 * Reads the long at the given index of the table storage
+	 */
+	long read(long index) {
+		return table[(int) index];
+	}
+
+	/**
+	 * Writes the long at the given index of the table storage
+	 */
+	void write(long index, long value) {
+		table[(int) index] = value;
+	}
+
+	/**
+	 * Sets every long in the given range of the table storage to NULL_ENTRY
+	 */
+	void fill(long fromIndex, long toIndex) {
+		Arrays.fill(table, (int) fromIndex, (int) toIndex, NULL_ENTRY);
+	}
+
+	private int getAge(long entry) {
+		return (int) ((generation - (entry >>> GENERATION_SHIFT)) & GENERATION_MASK);
 	}
 
-	private int squashKey(long key) {
-		return (int) (key & KEY_MASK);
+	// A table of a single bucket shifts by 64, which Java treats as no shift,
+	// but the mask then clears every bit
+	private long squashKey(long key) {
+		return (key >>> KEY_SHIFT) & KEY_MASK;
 	}
 
 }